@@ -1,6 +1,7 @@
 plugins {
     id("net.kyori.indra") version "3.1.3"
     id("com.github.johnrengelman.shadow") version "8.1.1"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 version = "1.1.0"
@@ -13,8 +14,12 @@ repositories {
 dependencies {
     implementation("com.github.Anuken.Arc:arc-core:v146")
     implementation("com.github.Anuken.Arc:arcnet:v146")
-    // Used to uncompress ConnectPacket, to determine the client's mindustry version
-    implementation("org.lz4:lz4-java:1.8.0")
+    // Used to compress ConnectPacket in benchmarks and tests, the server only decodes the few bytes holding the version
+    jmhImplementation("org.lz4:lz4-java:1.8.0")
+    testImplementation("org.lz4:lz4-java:1.8.0")
+
+    testImplementation("org.junit.jupiter:junit-jupiter:5.10.2")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 }
 
 indra {
@@ -24,6 +29,17 @@ indra {
     }
 }
 
+jmh {
+    jmhVersion.set("1.37")
+    // e.g. ./gradlew jmh -PjmhIncludes=Loopback
+    providers.gradleProperty("jmhIncludes").orNull?.let { includes.add(it) }
+}
+
+val loadtest: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output + sourceSets.main.get().compileClasspath
+    runtimeClasspath += output + compileClasspath + sourceSets.main.get().runtimeClasspath
+}
+
 tasks.shadowJar {
     archiveFileName.set("claj-server.jar")
     manifest.attributes["Main-Class"] = "com.xpdustry.claj.server.Main"
@@ -35,3 +51,17 @@ tasks.register<JavaExec>("runClajServer") {
     args("8000")
     standardInput = System.`in`
 }
+
+tasks.register<JavaExec>("runLoadTest") {
+    // e.g. ./gradlew runLoadTest -Pargs="port=8000 rooms=100 clients=8"
+    classpath(loadtest.runtimeClasspath)
+    mainClass.set("com.xpdustry.claj.server.LoadTest")
+    args(providers.gradleProperty("args").orNull?.split(" ") ?: emptyList<String>())
+}
+
+tasks.register<JavaExec>("runReplay") {
+    // e.g. ./gradlew runReplay -Pargs="capture=captures/1700000000000 speed=4"
+    classpath(loadtest.runtimeClasspath)
+    mainClass.set("com.xpdustry.claj.server.Replay")
+    args(providers.gradleProperty("args").orNull?.split(" ") ?: emptyList<String>())
+}
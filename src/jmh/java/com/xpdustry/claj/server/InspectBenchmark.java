@@ -0,0 +1,56 @@
+package com.xpdustry.claj.server;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/** Cost of looking for the ConnectPacket in the first frames of a client, see {@link Handshake}. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InspectBenchmark {
+
+    ByteBuffer other, plain, compressed;
+
+    @Setup
+    public void setup() {
+        other = ByteBuffer.allocate(256).put((byte) 10);
+        other.rewind();
+
+        // ConnectPacket header followed by the version, uncompressed
+        plain = ByteBuffer.allocate(256).put((byte) 3).putShort((short) 128).put((byte) 0).putInt(146);
+        plain.rewind();
+
+        // the same with the body compressed by LZ4, the way Mindustry sends it for larger packets
+        LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+        ByteBuffer body = ByteBuffer.allocate(128).putInt(146);
+        body.rewind();
+        ByteBuffer packed = ByteBuffer.allocate(compressor.maxCompressedLength(128));
+        int length = compressor.compress(body, 0, 128, packed, 0, packed.capacity());
+
+        compressed = ByteBuffer.allocate(4 + length).put((byte) 3).putShort((short) 128).put((byte) 1).put(packed.array(), 0, length);
+        compressed.rewind();
+    }
+
+    @Benchmark
+    public int otherPacket() {
+        return Handshake.version(other);
+    }
+
+    @Benchmark
+    public int connectPacket() {
+        return Handshake.version(plain);
+    }
+
+    @Benchmark
+    public int compressedConnectPacket() {
+        return Handshake.version(compressed);
+    }
+}
@@ -0,0 +1,68 @@
+package com.xpdustry.claj.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/** Room lookups by link and by redirector, and blacklist checks, with many entries. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+
+    @Param({ "100", "10000" })
+    public int count;
+
+    Distributor distributor;
+    String[] links;
+    Redirector[] redirectors;
+    byte[][] addresses;
+    int next;
+
+    @Setup
+    public void setup() {
+        Stubs.silence();
+        distributor = new Distributor(0, new ConcurrentHashMap<>());
+
+        links = new String[count];
+        redirectors = new Redirector[count];
+        for (int i = 0; i < count; i++) {
+            var room = new Room(links[i] = distributor.generateLink(), Stubs.connection(), distributor);
+            distributor.links.put(room.link, room);
+
+            room.add(redirectors[i] = new Redirector(Stubs.connection(), distributor, room));
+        }
+
+        Blacklist.clear();
+        addresses = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            Blacklist.add((i >> 8 & 0xff) + "." + (i & 0xff) + ".0.0/16");
+            addresses[i] = new byte[] { (byte) (i >> 8), (byte) i, 7, (byte) (i * 31) };
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Blacklist.clear();
+        distributor.stop();
+    }
+
+    @Benchmark
+    public Room findByLink() {
+        return distributor.find(links[next++ % count]);
+    }
+
+    @Benchmark
+    public Room findByRedirector() {
+        return distributor.find(redirectors[next++ % count]);
+    }
+
+    @Benchmark
+    public boolean blacklistContains() {
+        return Blacklist.contains(addresses[next++ % count]);
+    }
+}
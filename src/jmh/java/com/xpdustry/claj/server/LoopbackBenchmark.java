@@ -0,0 +1,125 @@
+package com.xpdustry.claj.server;
+
+import arc.net.Client;
+import arc.net.Connection;
+import arc.net.NetListener;
+import arc.util.Threads;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end relay over localhost sockets: a host sends frames through a redirector to a client that echoes them back.
+ * The sampling mode reports percentiles of the round trip, the throughput mode streams frames without waiting.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+
+    @Param({ "64", "1024" })
+    public int size;
+
+    @Param({ "arc", "nio" })
+    public String engine;
+
+    Distributor distributor;
+    Client room, host, client;
+    ByteBuffer frame;
+
+    final Semaphore echoes = new Semaphore(0);
+
+    @Setup
+    public void setup() throws Exception {
+        Stubs.silence();
+
+        int port;
+        try (var socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        distributor = new Distributor(0, new ConcurrentHashMap<>());
+        distributor.clientLimit = distributor.hostLimit = distributor.addressLimit = distributor.roomLimit = Limit.unlimited;
+        if (engine.equals("nio")) distributor.engine = new NioEngine(distributor, distributor.listener);
+        Threads.daemon("Benchmark Distributor", () -> {
+            try {
+                distributor.run(port);
+            } catch (IOException ignored) {}
+        });
+        Thread.sleep(200);
+
+        // the host of the room only hands out the link
+        var links = new SynchronousQueue<String>();
+        room = connect(port, new NetListener() {
+            @Override
+            public void received(Connection connection, Object object) {
+                if (object instanceof String link && link.startsWith("CLaJ")) links.offer(link);
+            }
+        });
+        room.sendTCP("new");
+        String link = links.poll(5, TimeUnit.SECONDS);
+
+        host = connect(port, new NetListener() {
+            @Override
+            public void received(Connection connection, Object object) {
+                if (object instanceof ByteBuffer) echoes.release();
+            }
+        });
+        host.sendTCP("host" + link);
+        Thread.sleep(100);
+
+        client = connect(port, new NetListener() {
+            @Override
+            public void received(Connection connection, Object object) {
+                if (object instanceof ByteBuffer buffer) connection.sendTCP(buffer);
+            }
+        });
+        client.sendTCP("join" + link);
+        Thread.sleep(100);
+
+        frame = ByteBuffer.allocate(size);
+        frame.put((byte) 10); // not a ConnectPacket, so it is never inspected
+        while (frame.hasRemaining()) frame.put((byte) frame.position());
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.stop();
+        host.stop();
+        room.stop();
+        distributor.stop();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void roundTrip() throws InterruptedException {
+        host.sendTCP(frame.rewind());
+        echoes.acquire();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(64)
+    public void stream() throws InterruptedException {
+        for (int i = 0; i < 64; i++) host.sendTCP(frame.rewind());
+        echoes.acquire(64);
+    }
+
+    Client connect(int port, NetListener listener) throws IOException {
+        var endpoint = new Client(32768, 8192, new Serializer());
+        endpoint.addListener(listener);
+        endpoint.start();
+        endpoint.connect(5000, "127.0.0.1", port, port);
+        return endpoint;
+    }
+}
@@ -0,0 +1,75 @@
+package com.xpdustry.claj.server;
+
+import arc.net.FrameworkMessage;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+
+    @Param({ "64", "1024", "8000" })
+    public int size;
+
+    Serializer serializer;
+    ByteBuffer raw, framework, link, target;
+
+    @Setup
+    public void setup() {
+        serializer = new Serializer();
+        target = ByteBuffer.allocate(32768);
+
+        raw = ByteBuffer.allocate(size);
+        raw.put((byte) 10); // any id that is neither framework nor link
+        while (raw.hasRemaining()) raw.put((byte) raw.position());
+        raw.flip();
+
+        framework = ByteBuffer.allocate(16);
+        serializer.write(framework, FrameworkMessage.keepAlive);
+        framework.flip();
+
+        link = ByteBuffer.allocate(128);
+        serializer.write(link, "joinCLaJAaBbCcDdEeFfGgHhIiJjKkLlMmNnOoPpQqRrSsTt");
+        link.flip();
+    }
+
+    @Benchmark
+    public Object readRaw() {
+        return serializer.read(raw.rewind());
+    }
+
+    @Benchmark
+    public Object readFramework() {
+        return serializer.read(framework.rewind());
+    }
+
+    @Benchmark
+    public Object readLink() {
+        return serializer.read(link.rewind());
+    }
+
+    @Benchmark
+    public ByteBuffer writeRaw() {
+        serializer.write(target.clear(), raw.rewind());
+        return target;
+    }
+
+    @Benchmark
+    public ByteBuffer writeFramework() {
+        serializer.write(target.clear(), FrameworkMessage.keepAlive);
+        return target;
+    }
+
+    @Benchmark
+    public ByteBuffer writeLink() {
+        serializer.write(target.clear(), "new");
+        return target;
+    }
+}
@@ -0,0 +1,25 @@
+package com.xpdustry.claj.server;
+
+import arc.net.Connection;
+import arc.util.Log;
+import arc.util.Log.LogLevel;
+
+/** Helpers shared by the benchmarks. */
+final class Stubs {
+
+    private Stubs() {}
+
+    /** Connection that is never connected and drops everything sent to it. */
+    static Connection connection() {
+        return new Connection() {
+            @Override
+            public int sendTCP(Object object) {
+                return 0;
+            }
+        };
+    }
+
+    static void silence() {
+        Log.level = LogLevel.none;
+    }
+}
@@ -0,0 +1,231 @@
+package com.xpdustry.claj.server;
+
+import arc.net.Client;
+import arc.net.Connection;
+import arc.net.DcReason;
+import arc.net.NetListener;
+import arc.util.Log;
+
+import com.xpdustry.claj.server.Metrics.Histogram;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator speaking the CLaJ link protocol against a running server.
+ * It creates rooms, hosts a redirector for every client, joins them and streams Mindustry-sized frames both ways.
+ * <p>
+ * Options are given as {@code name=value}: address, port, rooms, clients (per room), drivers (threads),
+ * seconds, rate (frames per second per direction), hostSize and clientSize (bytes per frame).
+ */
+public class LoadTest {
+
+    String address = "127.0.0.1";
+    int port = 8000, rooms = 10, clients = 4, drivers = 4, seconds = 30, rate = 30, hostSize = 1200, clientSize = 80;
+
+    /** Microseconds from sending {@code join} to receiving the first frame of the host. */
+    final Histogram joinMicros = new Histogram(500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 1000000);
+    /** Microseconds a frame spent going through the relay, both directions. */
+    final Histogram relayMicros = new Histogram(50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 100000);
+    final LongAdder frames = new LongAdder(), bytes = new LongAdder(), failed = new LongAdder(), lost = new LongAdder();
+
+    final ArrayList<Driver> threads = new ArrayList<>();
+    final ExecutorService connector = Executors.newFixedThreadPool(8);
+    volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        var test = new LoadTest();
+        for (String arg : args) test.option(arg);
+        test.run();
+    }
+
+    void option(String arg) {
+        String[] pair = arg.split("=", 2);
+        if (pair.length != 2) throw new IllegalArgumentException("Options are given as name=value: " + arg);
+
+        switch (pair[0]) {
+            case "address" -> address = pair[1];
+            case "port" -> port = Integer.parseInt(pair[1]);
+            case "rooms" -> rooms = Integer.parseInt(pair[1]);
+            case "clients" -> clients = Integer.parseInt(pair[1]);
+            case "drivers" -> drivers = Integer.parseInt(pair[1]);
+            case "seconds" -> seconds = Integer.parseInt(pair[1]);
+            case "rate" -> rate = Integer.parseInt(pair[1]);
+            case "hostSize" -> hostSize = Integer.parseInt(pair[1]);
+            case "clientSize" -> clientSize = Integer.parseInt(pair[1]);
+            default -> throw new IllegalArgumentException("Unknown option: " + pair[0]);
+        }
+    }
+
+    void run() throws Exception {
+        Log.info("Load test against @:@ with @ rooms of @ clients, @ frames/s of @ and @ bytes.",
+                address, port, rooms, clients, rate, hostSize, clientSize);
+
+        for (int i = 0; i < drivers; i++) {
+            var driver = new Driver();
+            threads.add(driver);
+            driver.start();
+        }
+
+        var joins = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < rooms; i++) {
+            var driver = threads.get(i % drivers);
+            joins.add(CompletableFuture.runAsync(() -> createRoom(driver), connector));
+        }
+        CompletableFuture.allOf(joins.toArray(CompletableFuture[]::new)).join();
+
+        long lastFrames = 0, lastBytes = 0;
+        for (int second = 0; second < seconds; second++) {
+            Thread.sleep(1000);
+
+            long currentFrames = frames.sum(), currentBytes = bytes.sum();
+            Log.info("@ frames/s, @ KiB/s, relay p99 <= @ us, @ failed joins, @ lost connections",
+                    currentFrames - lastFrames, (currentBytes - lastBytes) / 1024, relayMicros.quantile(0.99), failed.sum(), lost.sum());
+            lastFrames = currentFrames;
+            lastBytes = currentBytes;
+        }
+
+        running = false;
+        connector.shutdown();
+        for (var driver : threads) driver.join();
+
+        Log.info("Relayed @ frames and @ KiB in @ seconds.", frames.sum(), bytes.sum() / 1024, seconds);
+        Log.info("Join latency p50 <= @ us, p99 <= @ us.", joinMicros.quantile(0.5), joinMicros.quantile(0.99));
+        Log.info("Relay latency p50 <= @ us, p99 <= @ us, p99.9 <= @ us (-1 is above the last bucket).",
+                relayMicros.quantile(0.5), relayMicros.quantile(0.99), relayMicros.quantile(0.999));
+        Log.info("@ joins failed, @ connections lost.", failed.sum(), lost.sum());
+    }
+
+    /** Creates a room, then hosts a redirector and joins it once per client. Runs on the connector pool. */
+    void createRoom(Driver driver) {
+        try {
+            var link = new CompletableFuture<String>();
+            var room = driver.connect(new NetListener() {
+                @Override
+                public void received(Connection connection, Object object) {
+                    // the server also sends "new" and messages, which a real host would act upon
+                    if (object instanceof String text && text.startsWith("CLaJ")) link.complete(text);
+                }
+            });
+            room.sendTCP("new");
+            String key = link.get(10, TimeUnit.SECONDS);
+
+            for (int i = 0; i < clients; i++) {
+                var pair = new Pair();
+
+                pair.host = driver.connect(pair.listener(false));
+                pair.host.sendTCP("host" + key);
+                Thread.sleep(10); // let the redirector register before anyone joins
+
+                pair.client = driver.connect(pair.listener(true));
+                pair.joinStart = System.nanoTime();
+                pair.client.sendTCP("join" + key);
+
+                driver.pairs.add(pair);
+            }
+        } catch (Exception error) {
+            failed.increment();
+            Log.err("Could not create a room", error);
+        }
+    }
+
+    /** Host and client of a redirector, each one streams frames to the other and measures the ones it receives. */
+    class Pair {
+        Client host, client;
+        long joinStart, nextSend;
+        volatile boolean joined;
+
+        NetListener listener(boolean client) {
+            return new NetListener() {
+                @Override
+                public void received(Connection connection, Object object) {
+                    if (!(object instanceof ByteBuffer frame) || frame.remaining() < 9) return;
+
+                    long now = System.nanoTime();
+                    long sent = frame.getLong(frame.position() + 1);
+                    relayMicros.record((now - sent) / 1000);
+                    frames.increment();
+                    bytes.add(frame.remaining());
+
+                    if (client && !joined) {
+                        joined = true;
+                        joinMicros.record((now - joinStart) / 1000);
+                    }
+                }
+
+                @Override
+                public void disconnected(Connection connection, DcReason reason) {
+                    if (running) lost.increment();
+                }
+            };
+        }
+    }
+
+    /** Thread updating a share of the endpoints and sending their frames on schedule. */
+    class Driver extends Thread {
+        final CopyOnWriteArrayList<Client> endpoints = new CopyOnWriteArrayList<>();
+        final CopyOnWriteArrayList<Pair> pairs = new CopyOnWriteArrayList<>();
+        final ByteBuffer hostFrame = frame(hostSize), clientFrame = frame(clientSize);
+
+        Driver() {
+            super("Load Driver");
+            setDaemon(true);
+        }
+
+        /** Connects from the calling thread, this driver performs the updates needed to finish the handshake. */
+        Client connect(NetListener listener) throws Exception {
+            var endpoint = new Client(32768, 8192, new Serializer());
+            endpoint.addListener(listener);
+            endpoints.add(endpoint);
+            endpoint.connect(5000, address, port, port);
+            return endpoint;
+        }
+
+        @Override
+        public void run() {
+            long interval = 1_000_000_000L / rate, idle = 1_000_000L;
+
+            while (running) {
+                for (var endpoint : endpoints) {
+                    try {
+                        endpoint.update(0);
+                    } catch (Exception error) {
+                        endpoints.remove(endpoint);
+                    }
+                }
+
+                long now = System.nanoTime(), next = now + idle;
+                for (var pair : pairs) {
+                    if (now >= pair.nextSend) {
+                        pair.nextSend = Math.max(pair.nextSend + interval, now);
+
+                        if (pair.host.isConnected()) pair.host.sendTCP(hostFrame.putLong(1, System.nanoTime()).rewind());
+                        if (pair.client.isConnected()) pair.client.sendTCP(clientFrame.putLong(1, System.nanoTime()).rewind());
+                    }
+                    next = Math.min(next, pair.nextSend);
+                }
+
+                // endpoints have a selector each and are only polled, so the driver sleeps until the next send, at most a millisecond,
+                // which is as late as a frame may be read and how much the relay latency may be overestimated
+                LockSupport.parkNanos(next - System.nanoTime());
+            }
+
+            for (var endpoint : endpoints) endpoint.close();
+        }
+    }
+
+    /** Frame with an id that the server never inspects, followed by the time it was sent at. */
+    static ByteBuffer frame(int size) {
+        var frame = ByteBuffer.allocate(Math.max(size, 9));
+        frame.put((byte) 10);
+        while (frame.hasRemaining()) frame.put((byte) frame.position());
+        return frame;
+    }
+}
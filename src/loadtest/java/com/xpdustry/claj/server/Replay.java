@@ -0,0 +1,205 @@
+package com.xpdustry.claj.server;
+
+import arc.net.Client;
+import arc.net.Connection;
+import arc.net.DcReason;
+import arc.net.NetListener;
+import arc.struct.LongMap;
+import arc.util.Log;
+import arc.util.Threads;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Feeds a capture made with the {@code capture} command back through a local distributor.
+ * Every captured redirector becomes a host and a client joined through one room, which send the frames they sent originally.
+ * <p>
+ * Options are given as {@code name=value}: capture (directory of the capture), port (of the local distributor),
+ * speed (multiplier of the original pace, 0 sends as fast as possible) and limits (whether rate limits apply).
+ */
+public class Replay {
+
+    String capture;
+    int port = 8100;
+    double speed = 1;
+    boolean limits;
+
+    final ArrayList<Frame> frames = new ArrayList<>();
+    final LongMap<Pair> pairs = new LongMap<>();
+    final LongAdder received = new LongAdder(), receivedBytes = new LongAdder(), lost = new LongAdder();
+
+    public static void main(String[] args) throws Exception {
+        var replay = new Replay();
+        for (String arg : args) replay.option(arg);
+        if (replay.capture == null) throw new IllegalArgumentException("The capture directory is given with capture=<directory>");
+        replay.run();
+    }
+
+    void option(String arg) {
+        String[] pair = arg.split("=", 2);
+        if (pair.length != 2) throw new IllegalArgumentException("Options are given as name=value: " + arg);
+
+        switch (pair[0]) {
+            case "capture" -> capture = pair[1];
+            case "port" -> port = Integer.parseInt(pair[1]);
+            case "speed" -> speed = Double.parseDouble(pair[1]);
+            case "limits" -> limits = Boolean.parseBoolean(pair[1]);
+            default -> throw new IllegalArgumentException("Unknown option: " + pair[0]);
+        }
+    }
+
+    void run() throws Exception {
+        read(Path.of(capture));
+        if (frames.isEmpty()) {
+            Log.info("The capture is empty.");
+            return;
+        }
+        frames.sort(Comparator.comparingLong(frame -> frame.nanos));
+
+        var distributor = new Distributor(0, new ConcurrentHashMap<>());
+        if (!limits) distributor.clientLimit = distributor.hostLimit = distributor.addressLimit = distributor.roomLimit = Limit.unlimited;
+        // a capture may hold more redirectors than one address may open, and gaps longer than the timeouts once slowed down
+        distributor.maxConnections = distributor.maxConnectionsPerAddress = Integer.MAX_VALUE;
+        // every replayed connection comes from loopback, each keeps a budget of its own as it had when captured
+        Distributor.trustLoopback = true;
+        distributor.handshakeTimeout = distributor.freeTimeout = distributor.pairTimeout = distributor.roomTimeout = Integer.MAX_VALUE;
+        Threads.daemon("Replay Distributor", () -> {
+            try {
+                distributor.run(port);
+            } catch (IOException error) {
+                Log.err("Could not run the distributor", error);
+            }
+        });
+        Thread.sleep(200);
+
+        var links = new SynchronousQueue<String>();
+        var room = connect(new NetListener() {
+            @Override
+            public void received(Connection connection, Object object) {
+                if (object instanceof String link && link.startsWith("CLaJ")) links.offer(link);
+            }
+        });
+        room.sendTCP("new");
+        String link = links.poll(5, TimeUnit.SECONDS);
+        if (link == null) throw new IllegalStateException("The distributor did not create a room.");
+
+        for (var pair : pairs.values()) {
+            pair.host = connect(listener());
+            pair.host.sendTCP("host" + link);
+            Thread.sleep(10); // let the redirector register before anyone joins
+
+            pair.client = connect(listener());
+            pair.client.sendTCP("join" + link);
+        }
+        Thread.sleep(500);
+
+        Log.info("Replaying @ frames of @ redirectors at @x speed.", frames.size(), pairs.size, speed);
+
+        long start = System.nanoTime(), first = frames.get(0).nanos, sentBytes = 0;
+        for (var frame : frames) {
+            if (speed > 0) {
+                long due = start + (long) ((frame.nanos - first) / speed);
+                while (System.nanoTime() < due) Thread.onSpinWait();
+            }
+
+            var sender = (frame.flags & Capture.toClient) != 0 ? frame.pair.host : frame.pair.client;
+            if (!sender.isConnected()) continue;
+
+            if ((frame.flags & Capture.udp) != 0) sender.sendUDP(frame.payload.rewind());
+            else sender.sendTCP(frame.payload.rewind());
+            sentBytes += frame.payload.capacity();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Thread.sleep(500); // let the last frames arrive
+
+        Log.info("Sent @ frames and @ KiB in @ seconds, @ frames/s.", frames.size(), sentBytes / 1024,
+                String.format("%.2f", seconds), String.format("%.0f", frames.size() / Math.max(seconds, 1e-3)));
+        Log.info("Received @ frames and @ KiB, @ connections lost.", received.sum(), receivedBytes.sum() / 1024, lost.sum());
+
+        for (var pair : pairs.values()) {
+            pair.host.stop();
+            pair.client.stop();
+        }
+        room.stop();
+        distributor.stop();
+    }
+
+    /** Indexes the records of all segments, the payloads stay in the mappings. */
+    void read(Path directory) throws IOException {
+        try (var files = Files.list(directory)) {
+            for (var file : files.filter(file -> file.toString().endsWith(".cap")).toList()) {
+                MappedByteBuffer segment;
+                try (var channel = FileChannel.open(file)) {
+                    segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+
+                if (segment.remaining() < 4 || segment.getInt() != Capture.magic) {
+                    Log.warn("@ is not a capture segment, skipped.", file);
+                    continue;
+                }
+
+                while (segment.remaining() >= Capture.headerSize && segment.get() == Capture.record) {
+                    var frame = new Frame();
+                    frame.flags = segment.get();
+                    long key = (long) segment.getShort() << 32 | segment.getInt() & 0xffffffffL;
+                    frame.nanos = segment.getLong();
+
+                    int length = segment.getShort() & 0xffff;
+                    frame.payload = segment.slice(segment.position(), length);
+                    segment.position(segment.position() + length);
+
+                    frame.pair = pairs.get(key);
+                    if (frame.pair == null) pairs.put(key, frame.pair = new Pair());
+                    frames.add(frame);
+                }
+            }
+        }
+    }
+
+    NetListener listener() {
+        return new NetListener() {
+            @Override
+            public void received(Connection connection, Object object) {
+                if (!(object instanceof ByteBuffer frame)) return;
+
+                received.increment();
+                receivedBytes.add(frame.remaining());
+            }
+
+            @Override
+            public void disconnected(Connection connection, DcReason reason) {
+                lost.increment();
+            }
+        };
+    }
+
+    Client connect(NetListener listener) throws IOException {
+        var endpoint = new Client(32768, 8192, new Serializer());
+        endpoint.addListener(listener);
+        endpoint.start();
+        endpoint.connect(5000, "127.0.0.1", port, port);
+        return endpoint;
+    }
+
+    static class Frame {
+        long nanos;
+        byte flags;
+        ByteBuffer payload;
+        Pair pair;
+    }
+
+    static class Pair {
+        Client host, client;
+    }
+}
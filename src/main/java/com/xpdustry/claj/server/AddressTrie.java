@@ -0,0 +1,136 @@
+package com.xpdustry.claj.server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Immutable binary prefix trie over the bits of IPv4 and IPv6 addresses.
+ * Every modification copies only the path to the changed node, so readers can use any instance without locking.
+ */
+public final class AddressTrie {
+
+    public static final AddressTrie empty = new AddressTrie(null, null);
+
+    private final Node v4, v6;
+
+    private AddressTrie(Node v4, Node v6) {
+        this.v4 = v4;
+        this.v6 = v6;
+    }
+
+    /** Returns whether the address is inside any of the ranges, it takes at most one step per bit. */
+    public boolean contains(byte[] address) {
+        Node node = address.length == 4 ? v4 : v6;
+        int bits = address.length * 8;
+
+        for (int depth = 0; node != null; depth++) {
+            if (node.terminal) return true;
+            if (depth == bits) return false;
+
+            node = bit(address, depth) ? node.one : node.zero;
+        }
+
+        return false;
+    }
+
+    public AddressTrie with(byte[] address, int prefix) {
+        return address.length == 4
+                ? new AddressTrie(insert(v4, address, prefix, 0), v6)
+                : new AddressTrie(v4, insert(v6, address, prefix, 0));
+    }
+
+    /** Removes exactly the given range, wider or narrower ranges are kept. */
+    public AddressTrie without(byte[] address, int prefix) {
+        return address.length == 4
+                ? new AddressTrie(delete(v4, address, prefix, 0), v6)
+                : new AddressTrie(v4, delete(v6, address, prefix, 0));
+    }
+
+    // region parsing
+
+    /** Parses an address literal without resolving anything, returns null if it is not one. */
+    public static byte[] parse(String address) {
+        if (address.indexOf(':') != -1) {
+            try {
+                // strings containing a colon are always treated as IPv6 literals and never looked up
+                return InetAddress.getByName(address).getAddress();
+            } catch (UnknownHostException | SecurityException ignored) {
+                return null;
+            }
+        }
+
+        String[] parts = address.split("\\.", -1);
+        if (parts.length != 4) return null;
+
+        byte[] result = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            if (parts[i].isEmpty() || parts[i].length() > 3) return null;
+
+            int value = 0;
+            for (char c : parts[i].toCharArray()) {
+                if (c < '0' || c > '9') return null;
+                value = value * 10 + c - '0';
+            }
+
+            if (value > 255) return null;
+            result[i] = (byte) value;
+        }
+
+        return result;
+    }
+
+    /** Parses the length of the prefix of a range like {@code 10.0.0.0/8}, a plain address covers all of its bits. */
+    public static int prefix(String range, byte[] address) {
+        int bits = address.length * 8;
+        int slash = range.indexOf('/');
+        if (slash == -1) return bits;
+
+        try {
+            int prefix = Integer.parseInt(range.substring(slash + 1));
+            return prefix >= 0 && prefix <= bits ? prefix : -1;
+        } catch (NumberFormatException ignored) {
+            return -1;
+        }
+    }
+
+    // endregion
+    // region nodes
+
+    private static boolean bit(byte[] address, int index) {
+        return (address[index >>> 3] & (0x80 >>> (index & 7))) != 0;
+    }
+
+    private static Node insert(Node node, byte[] address, int prefix, int depth) {
+        Node zero = node == null ? null : node.zero, one = node == null ? null : node.one;
+        if (depth == prefix) return new Node(zero, one, true);
+
+        if (bit(address, depth))
+            one = insert(one, address, prefix, depth + 1);
+        else
+            zero = insert(zero, address, prefix, depth + 1);
+
+        return new Node(zero, one, node != null && node.terminal);
+    }
+
+    private static Node delete(Node node, byte[] address, int prefix, int depth) {
+        if (node == null) return null;
+
+        Node zero = node.zero, one = node.one;
+        boolean terminal = node.terminal;
+
+        if (depth == prefix)
+            terminal = false;
+        else if (bit(address, depth))
+            one = delete(one, address, prefix, depth + 1);
+        else
+            zero = delete(zero, address, prefix, depth + 1);
+
+        // prune branches that no longer lead to any range
+        if (zero == null && one == null && !terminal) return null;
+        return new Node(zero, one, terminal);
+    }
+
+    private record Node(Node zero, Node one, boolean terminal) {}
+
+    // endregion
+}
@@ -0,0 +1,164 @@
+package com.xpdustry.claj.server;
+
+import arc.util.Log;
+import arc.util.Log.LogHandler;
+import arc.util.Log.LogLevel;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log handler that never blocks the caller: messages go into a bounded lock-free queue drained by a background writer.
+ * The writer formats and prints them in batches, and optionally appends them to a file rotated by size.
+ * When the queue fills up, info and debug messages are sampled, then everything is dropped and counted.
+ */
+public class AsyncLog implements LogHandler {
+
+    /** Maximum number of messages waiting to be written. */
+    public final int capacity;
+    /** Once this many messages are waiting, only one info or debug message in {@link #sampling} is kept. */
+    public final int overload;
+    public final int sampling = 16;
+
+    public final Path file;
+    public final long maxSize;
+    public final int maxFiles;
+
+    /** Messages that were sampled out or did not fit in the queue. */
+    public final LongAdder dropped = new LongAdder();
+
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger sampled = new AtomicInteger();
+    private final StringBuilder batch = new StringBuilder(8192);
+    private final Thread writer;
+
+    private BufferedWriter output;
+    private long written;
+    private long reported;
+
+    /** Creates the handler and starts its writer, the file is optional and rotated once it exceeds the maximum size. */
+    public AsyncLog(int capacity, Path file, long maxSize, int maxFiles) {
+        this.capacity = capacity;
+        this.overload = capacity * 3 / 4;
+        this.file = file;
+        this.maxSize = maxSize;
+        this.maxFiles = maxFiles;
+
+        if (file != null) open();
+
+        writer = new Thread(this::drain, "Log Writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "Log Flush"));
+    }
+
+    @Override
+    public void log(LogLevel level, String text) {
+        int waiting = size.get();
+        if (waiting >= capacity || (waiting >= overload && level.ordinal() < LogLevel.warn.ordinal()
+                && sampled.incrementAndGet() % sampling != 0)) {
+            dropped.increment();
+            return;
+        }
+
+        size.incrementAndGet();
+        queue.add(new Entry(System.currentTimeMillis(), level, text));
+    }
+
+    private void drain() {
+        while (true) {
+            if (!write()) LockSupport.parkNanos(5_000_000L); // nothing to write, batch whatever comes in the meantime
+        }
+    }
+
+    /** Writes everything that is queued at once, returns whether there was anything. */
+    private synchronized boolean write() {
+        long drops = dropped.sum();
+        if (drops != reported) {
+            append(new Entry(System.currentTimeMillis(), LogLevel.warn, "Dropped " + (drops - reported) + " log messages due to overload."));
+            reported = drops;
+        }
+
+        for (Entry entry; (entry = queue.poll()) != null;) {
+            size.decrementAndGet();
+            append(entry);
+        }
+
+        if (batch.isEmpty()) return false;
+
+        System.out.print(batch);
+        System.out.flush();
+        batch.setLength(0);
+
+        if (output != null) {
+            try {
+                output.flush();
+                if (written > maxSize) rotate();
+            } catch (IOException error) {
+                System.err.println("Could not write the log file: " + error);
+            }
+        }
+
+        return true;
+    }
+
+    private void append(Entry entry) {
+        String date = Main.dateTime.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(entry.time), ZoneId.systemDefault()));
+        String text = "&lk&fb[" + date + "]&fr " + Main.tags[entry.level.ordinal()] + " " + entry.text + "&fr";
+        batch.append(Log.format(text)).append(System.lineSeparator());
+
+        if (output == null) return;
+        try {
+            String line = "[" + date + "] " + Log.removeColors(Main.tags[entry.level.ordinal()]) + " " + Log.removeColors(entry.text) + "\n";
+            output.write(line);
+            written += line.length();
+        } catch (IOException error) {
+            System.err.println("Could not write the log file: " + error);
+        }
+    }
+
+    /** Writes what is left, used when the application exits. */
+    public void flush() {
+        write();
+    }
+
+    private void open() {
+        try {
+            output = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            written = Files.size(file);
+        } catch (IOException error) {
+            System.err.println("Could not open the log file, logging to the console only: " + error);
+            output = null;
+        }
+    }
+
+    /** Shifts log.N to log.N+1, dropping the oldest one, then starts a new file. */
+    private void rotate() throws IOException {
+        output.close();
+
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path from = i == 1 ? file : file.resolveSibling(file.getFileName() + "." + (i - 1));
+            if (Files.exists(from))
+                Files.move(from, file.resolveSibling(file.getFileName() + "." + i), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (maxFiles <= 1) Files.deleteIfExists(file);
+
+        open();
+    }
+
+    private record Entry(long time, LogLevel level, String text) {}
+}
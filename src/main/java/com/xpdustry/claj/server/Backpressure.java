@@ -0,0 +1,17 @@
+package com.xpdustry.claj.server;
+
+/**
+ * What a redirector does once the TCP write buffer of a receiver fills above the high water mark.
+ * With every policy, a receiver that stays congested longer than the grace period is disconnected.
+ */
+public enum Backpressure {
+    /**
+     * Parks the frames of the peer until the receiver drains, up to one write buffer, and stops reading the peer meanwhile.
+     * Only the NIO engine can stop reading, arcnet keeps reading the peer and the receiver is disconnected once the park buffer is full.
+     */
+    pause,
+    /** Drops frames that were received over UDP, they are unreliable anyway. Reliable ones are relayed while they fit. */
+    drop,
+    /** Keeps relaying while frames fit, relying on the grace period alone. */
+    disconnect
+}
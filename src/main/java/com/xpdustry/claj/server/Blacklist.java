@@ -1,40 +1,85 @@
 package com.xpdustry.claj.server;
 
-import arc.struct.Seq;
 import arc.util.Http;
 import arc.util.Log;
 import arc.util.serialization.Jval;
 
+import java.net.InetAddress;
+
+/**
+ * Set of banned addresses and CIDR ranges, both IPv4 and IPv6.
+ * Checks read a snapshot of the trie without locking, modifications replace it.
+ */
 public class Blacklist {
 
     public static final String actionsURL = "https://api.github.com/meta";
-    public static final Seq<String> ips = new Seq<>();
+
+    private static volatile AddressTrie trie = AddressTrie.empty;
 
     public static void refresh() {
         Http.get(actionsURL, result -> {
             var json = Jval.read(result.getResultAsString());
-            json.get("actions").asArray().each(element -> {
-                String ip = element.asString();
-                if (ip.charAt(4) != ':') ips.add(ip); // skip IPv6
-            });
+            int added = 0;
+
+            synchronized (Blacklist.class) {
+                var next = trie;
+                for (var element : json.get("actions").asArray()) {
+                    String range = element.asString();
+
+                    byte[] address = AddressTrie.parse(range.split("/")[0]);
+                    if (address == null) continue;
 
-            Log.info("Added @ GitHub Actions IPs to blacklist.", ips.size);
+                    int prefix = AddressTrie.prefix(range, address);
+                    if (prefix == -1) continue;
+
+                    next = next.with(address, prefix);
+                    added++;
+                }
+                trie = next;
+            }
+
+            Log.info("Added @ GitHub Actions IP ranges to blacklist.", added);
         }, error -> Log.err("Failed to fetch GitHub Actions IPs", error));
     }
 
-    public static void add(String ip) {
-        ips.add(ip);
+    /** Adds an address or a CIDR range, returns false if it could not be parsed. */
+    public static synchronized boolean add(String range) {
+        byte[] address = AddressTrie.parse(range.split("/")[0]);
+        if (address == null) return false;
+
+        int prefix = AddressTrie.prefix(range, address);
+        if (prefix == -1) return false;
+
+        trie = trie.with(address, prefix);
+        return true;
+    }
+
+    public static boolean contains(InetAddress address) {
+        return trie.contains(address.getAddress());
+    }
+
+    public static boolean contains(byte[] address) {
+        return trie.contains(address);
     }
 
     public static boolean contains(String ip) {
-        return ips.contains(ip);
+        byte[] address = AddressTrie.parse(ip);
+        return address != null && trie.contains(address);
     }
 
-    public static void remove(String ip) {
-        ips.remove(ip);
+    /** Removes exactly the given address or CIDR range, returns false if it could not be parsed. */
+    public static synchronized boolean remove(String range) {
+        byte[] address = AddressTrie.parse(range.split("/")[0]);
+        if (address == null) return false;
+
+        int prefix = AddressTrie.prefix(range, address);
+        if (prefix == -1) return false;
+
+        trie = trie.without(address, prefix);
+        return true;
     }
 
-    public static void clear() {
-        ips.clear();
+    public static synchronized void clear() {
+        trie = AddressTrie.empty;
     }
 }
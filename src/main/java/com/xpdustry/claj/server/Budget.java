@@ -0,0 +1,56 @@
+package com.xpdustry.claj.server;
+
+import java.net.InetAddress;
+
+/**
+ * Pair of token buckets, for packets and for bytes, refilled continuously at the rates of a {@link Limit}.
+ * Budgets exist per connection, per source address and per room.
+ */
+public class Budget {
+
+    private double packets, bytes;
+    /** Time of the last refill in nanoseconds, zero until the first one so that a new budget starts full. */
+    long last;
+
+    /** Budget of the source address of a connection. */
+    Budget source;
+    /** Number of connections sharing the budget, only used for source addresses. Guarded by the budget, as the connections may be on any shard. */
+    int connections;
+    /** Time by which a connection has to send a link, only used for connections. */
+    long deadline;
+
+    /** Takes one packet of the given size from the budget, returns false and takes nothing if it does not have enough. Budgets of source addresses are shared by all shards. */
+    public synchronized boolean take(Limit limit, int size, long now) {
+        double maxPackets = (double) limit.packets() * Limit.burst, maxBytes = (double) limit.bytes() * Limit.burst;
+
+        if (last == 0) {
+            packets = maxPackets;
+            bytes = maxBytes;
+        } else {
+            double seconds = (now - last) / 1e9;
+            packets = Math.min(maxPackets, packets + seconds * limit.packets());
+            bytes = Math.min(maxBytes, bytes + seconds * limit.bytes());
+        }
+        last = now;
+
+        if (packets < 1 || bytes < size) return false;
+
+        packets -= 1;
+        bytes -= size;
+        return true;
+    }
+
+    /** Returns the key of the budget of a source address: the address itself for IPv4 and its /64 prefix for IPv6. */
+    public static long key(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        long key = 0;
+
+        if (bytes.length == 4) {
+            for (byte b : bytes) key = key << 8 | b & 0xff;
+            return key;
+        }
+
+        for (int i = 0; i < 8; i++) key = key << 8 | bytes[i] & 0xff;
+        return key | 1L << 63; // so IPv6 prefixes never collide with IPv4 addresses
+    }
+}
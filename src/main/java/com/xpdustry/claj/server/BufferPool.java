@@ -0,0 +1,111 @@
+package com.xpdustry.claj.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers shared by all shards, sized in powers of two from 1 KiB to 64 KiB.
+ * A buffer has a single owner, which releases it exactly once, on any thread. Ownership may be handed to another shard,
+ * as with datagrams copied for the shard of their connection, the task carrying it orders the handoff.
+ * Larger requests are allocated without pooling.
+ */
+public class BufferPool {
+
+    public static final int minShift = 10, maxShift = 16;
+
+    /** Bytes of released buffers kept per size class, the rest is left to the garbage collector. */
+    public static volatile int maxIdleBytes = 16 << 20;
+
+    private static final SizeClass[] classes = new SizeClass[maxShift - minShift + 1];
+    /** Bytes currently acquired, and bytes kept in the pool for later use. */
+    private static final AtomicLong used = new AtomicLong(), idle = new AtomicLong();
+
+    static {
+        for (int i = 0; i < classes.length; i++) classes[i] = new SizeClass(1 << (minShift + i));
+    }
+
+    /** Returns a cleared buffer of at least the given capacity, owned by the caller until released. */
+    public static Pooled acquire(int size) {
+        int shift = Math.max(32 - Integer.numberOfLeadingZeros(size - 1), minShift);
+        if (shift > maxShift) {
+            used.addAndGet(size);
+            return new Pooled(null, ByteBuffer.allocateDirect(size));
+        }
+
+        var pool = classes[shift - minShift];
+        var pooled = pool.idle.poll();
+        if (pooled != null) {
+            pool.idleCount.decrementAndGet();
+            idle.addAndGet(-pool.size);
+            pooled.buffer.clear();
+            pooled.released = false;
+        } else {
+            pooled = new Pooled(pool, ByteBuffer.allocateDirect(pool.size));
+            pool.allocated.incrementAndGet();
+        }
+
+        used.addAndGet(pool.size);
+        return pooled;
+    }
+
+    public static long used() {
+        return used.get();
+    }
+
+    public static long idle() {
+        return idle.get();
+    }
+
+    /** Number of buffers of each size class ever allocated and not dropped, indexed from {@link #minShift}. */
+    public static int allocated(int shift) {
+        return classes[shift - minShift].allocated.get();
+    }
+
+    public static int idle(int shift) {
+        return classes[shift - minShift].idleCount.get();
+    }
+
+    private static class SizeClass {
+        final int size;
+        final ConcurrentLinkedQueue<Pooled> idle = new ConcurrentLinkedQueue<>();
+        final AtomicInteger allocated = new AtomicInteger(), idleCount = new AtomicInteger();
+
+        SizeClass(int size) {
+            this.size = size;
+        }
+    }
+
+    public static class Pooled {
+
+        public final ByteBuffer buffer;
+
+        private final SizeClass pool;
+        private boolean released;
+
+        private Pooled(SizeClass pool, ByteBuffer buffer) {
+            this.pool = pool;
+            this.buffer = buffer;
+        }
+
+        /** Gives the buffer back, it must not be touched afterwards. */
+        public void release() {
+            if (released) throw new IllegalStateException("Buffer already released!");
+            released = true;
+
+            if (pool == null) {
+                used.addAndGet(-buffer.capacity());
+                return;
+            }
+
+            used.addAndGet(-pool.size);
+            if ((long) pool.idleCount.get() * pool.size < maxIdleBytes) {
+                pool.idleCount.incrementAndGet();
+                idle.addAndGet(pool.size);
+                pool.idle.add(this);
+            } else
+                pool.allocated.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.xpdustry.claj.server;
+
+import arc.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends relayed frames to memory-mapped segment files, recording is a copy into the mapping without any lock or system call.
+ * Each shard has its own writer and files, once a segment is full the next one is mapped and the oldest is deleted, like a ring.
+ * <p>
+ * A segment starts with {@link #magic}, then each record is: tag {@link #record}, flags, shard and connection id of the host
+ * of the redirector, nanoseconds since the capture started, and the frame prefixed with its length. A zero tag ends the segment.
+ */
+public class Capture {
+
+    public static final int magic = 0x434c614a;
+    public static final byte record = 1;
+    /** Flags of a record. */
+    public static final byte toClient = 1, udp = 2;
+    public static final int headerSize = 1 + 1 + 2 + 4 + 8 + 2;
+
+    /** Whether frames of all rooms are recorded, otherwise only those of rooms marked as captured. */
+    public volatile boolean all;
+    /** Frames recorded so far, only written by the shard. */
+    public long frames;
+
+    public final Path directory;
+    public final int shard, segmentSize, segments;
+    /** Time all shards of the capture count from, so that their files can be merged. */
+    public final long start;
+
+    private MappedByteBuffer segment;
+    private int index;
+
+    public Capture(Path directory, int shard, long start, int segmentSize, int segments) throws IOException {
+        this.directory = directory;
+        this.shard = shard;
+        this.start = start;
+        this.segmentSize = segmentSize;
+        this.segments = segments;
+        map();
+    }
+
+    public static Path file(Path directory, int shard, int index) {
+        return directory.resolve("shard-" + shard + "-" + index + ".cap");
+    }
+
+    /** Records a frame without consuming it. Runs on the shard that read it. */
+    public void write(Redirector redirector, boolean toClient, boolean udp, ByteBuffer frame) {
+        if (segment == null) return; // could not map the next segment
+
+        int length = frame.remaining();
+        if (segment.remaining() < headerSize + length + 1 && !rotate()) return;
+
+        segment.put(record)
+               .put((byte) ((toClient ? Capture.toClient : 0) | (udp ? Capture.udp : 0)))
+               .putShort((short) redirector.hostShard.shard)
+               .putInt(redirector.host.getID())
+               .putLong(System.nanoTime() - start)
+               .putShort((short) length);
+        segment.put(segment.position(), frame, frame.position(), length);
+        segment.position(segment.position() + length);
+        frames++;
+    }
+
+    /** Ends the current segment, the mapping is released by the garbage collector. Runs on the shard. */
+    public void close() {
+        end();
+        Log.info("Capture of shard @ stopped after @ frames.", shard, frames);
+    }
+
+    /** The operating system writes the pages back on its own, forcing them would block the shard. */
+    private void end() {
+        if (segment != null) segment.put((byte) 0);
+        segment = null;
+    }
+
+    private boolean rotate() {
+        end();
+        index++;
+
+        try {
+            Files.deleteIfExists(file(directory, shard, index - segments));
+            map();
+            return true;
+        } catch (IOException error) {
+            Log.err("Could not map the next capture segment, recording stopped", error);
+            return false;
+        }
+    }
+
+    private void map() throws IOException {
+        try (var channel = FileChannel.open(file(directory, shard, index),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize); // the mapping outlives the channel
+        }
+
+        segment.putInt(magic);
+    }
+}
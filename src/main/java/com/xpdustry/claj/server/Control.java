@@ -7,15 +7,25 @@ import arc.util.Log;
 import arc.util.Strings;
 import arc.util.Threads;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 public class Control {
 
     public final CommandHandler handler = new CommandHandler("");
-    public final Distributor distributor;
+    public final Shards shards;
 
-    public Control(Distributor distributor) {
-        this.distributor = distributor;
+    private long lastStats = System.nanoTime(), lastPackets, lastBytes;
+    /** Time at which a drain stops waiting for games to end, zero unless draining. */
+    private volatile long drainDeadline;
+    /** Incremented by every drain, so that the report of a cancelled one stops. */
+    private volatile int drains;
+
+    public Control(Shards shards) {
+        this.shards = shards;
         this.registerCommands();
 
         Threads.daemon("Application Control", () -> {
@@ -44,32 +54,220 @@ public class Control {
 
         handler.register("list", "Displays all current rooms.", args -> {
             Log.info("Rooms:");
-            distributor.rooms.forEach(entry -> {
-                Log.info("  &b&lbRoom @&fr", entry.value.link);
-                entry.value.redirectors.each(r -> {
-                    Log.info("    [H] &b&lbConnection @&fr - @", r.host.getID(), Main.getIP(r.host));
-                    if (r.client == null) return;
-                    Log.info("    [C] &b&lbConnection @&fr - @", r.client.getID(), Main.getIP(r.client));
-                });
+            for (var distributor : shards.distributors) distributor.rooms.forEach(entry -> {
+                Log.info("  &b&lbRoom @&fr - shard @", entry.value.link, distributor.shard);
+                for (var r : entry.value.redirectors) {
+                    var host = r.host;
+                    if (host != null) Log.info("    [H] &b&lbConnection @&fr - @", host.getID(), Main.getIP(host));
+                    var client = r.client;
+                    if (client == null) continue;
+                    Log.info("    [C] &b&lbConnection @&fr - @", client.getID(), Main.getIP(client));
+                }
             });
         });
 
-        handler.register("limit", "[amount]", "Sets spam packet limit.", args -> {
+        handler.register("stats", "Displays relay statistics since the last call.", args -> {
+            long now = System.nanoTime();
+            double seconds = Math.max((now - lastStats) / 1e9, 1e-3);
+            lastStats = now;
+
+            long packets = Metrics.packetsToClient.sum() + Metrics.packetsToHost.sum();
+            long bytes = Metrics.bytesToClient.sum() + Metrics.bytesToHost.sum();
+            int rooms = shards.links.size(), redirectors = 0;
+            for (var distributor : shards.distributors) redirectors += distributor.redirectors.size;
+
+            Log.info("Stats over the last @ seconds:", Strings.fixed((float) seconds, 1));
+            Log.info("  &b&lbRooms&fr - @, &b&lbredirector connections&fr - @", rooms, redirectors);
+            Log.info("  &b&lbPackets&fr - @/s, &b&lbbytes&fr - @/s", Strings.fixed((float) ((packets - lastPackets) / seconds), 1),
+                    Strings.fixed((float) ((bytes - lastBytes) / seconds), 1));
+            Log.info("  &b&lbTo clients&fr - @ packets, @ bytes", Metrics.packetsToClient.sum(), Metrics.bytesToClient.sum());
+            Log.info("  &b&lbTo hosts&fr - @ packets, @ bytes", Metrics.packetsToHost.sum(), Metrics.bytesToHost.sum());
+            Log.info("  &b&lbForwarding p99&fr - <= @ ns", Metrics.forwardNanos.quantile(0.99));
+            Log.info("  &b&lbConnections&fr - @ accepted, @ lost, @ blacklisted, @ spam kicks",
+                    Metrics.connections.sum(), Metrics.disconnections.sum(), Metrics.blacklisted.sum(), Metrics.spamKicks.sum());
+            Log.info("  &b&lbBuffer pool&fr - @ KiB used, @ KiB idle", BufferPool.used() >> 10, BufferPool.idle() >> 10);
+
+            lastPackets = packets;
+            lastBytes = bytes;
+        });
+
+        handler.register("limit", "[scope] [packets] [bytes]", "Sets the rate limits per second of a scope: client, host, address or room.", args -> {
+            var first = shards.distributors[0];
+            if (args.length == 0) {
+                Log.info("Current limits, with bursts of @ seconds:", Limit.burst);
+                Log.info("  &b&lbClient&fr - @", first.clientLimit);
+                Log.info("  &b&lbHost&fr - @", first.hostLimit);
+                Log.info("  &b&lbAddress&fr - @", first.addressLimit);
+                Log.info("  &b&lbRoom&fr - @", first.roomLimit);
+                return;
+            }
+
+            if (args.length < 3) {
+                Log.err("Both the packets and bytes per second are needed.");
+                return;
+            }
+
+            var limit = new Limit(Strings.parseInt(args[1], 0), Strings.parseInt(args[2], 0));
+            if (limit.packets() <= 0 || limit.bytes() <= 0) {
+                Log.err("Limits must be positive numbers.");
+                return;
+            }
+
+            for (var distributor : shards.distributors) {
+                switch (args[0]) {
+                    case "client" -> distributor.clientLimit = limit;
+                    case "host" -> distributor.hostLimit = limit;
+                    case "address" -> distributor.addressLimit = limit;
+                    case "room" -> distributor.roomLimit = limit;
+                    default -> {
+                        Log.err("Unknown scope @, expected client, host, address or room.", args[0]);
+                        return;
+                    }
+                }
+            }
+            Log.info("@ limit set to @.", Strings.capitalize(args[0]), limit);
+        });
+
+        handler.register("pool", "[size]", "Sets the number of free redirectors kept ready in each room.", args -> {
             if (args.length == 0)
-                Log.info("Current limit - @ packets per 3 seconds.", distributor.spamLimit);
+                Log.info("Current pool size - @ redirectors per room.", shards.distributors[0].poolSize);
             else {
-                distributor.spamLimit = Strings.parseInt(args[0], 300);
-                Log.info("Packet spam limit set to @ packets per 3 seconds.", distributor.spamLimit);
+                int size = Math.max(Strings.parseInt(args[0], 3), 1);
+                for (var distributor : shards.distributors) distributor.poolSize = size;
+                Log.info("Pool size set to @ redirectors per room.", size);
+            }
+        });
+
+        handler.register("backpressure", "[policy] [grace]", "Sets what happens to receivers that cannot keep up: pause, drop or disconnect.", args -> {
+            var first = shards.distributors[0];
+            if (args.length == 0) {
+                Log.info("Current policy - @, disconnecting after @ ms of congestion.", first.backpressure, first.congestionGrace);
+                return;
+            }
+
+            Backpressure policy;
+            try {
+                policy = Backpressure.valueOf(args[0]);
+            } catch (IllegalArgumentException error) {
+                Log.err("Unknown policy @, expected pause, drop or disconnect.", args[0]);
+                return;
+            }
+
+            int grace = args.length > 1 ? Strings.parseInt(args[1], first.congestionGrace) : first.congestionGrace;
+            for (var distributor : shards.distributors) {
+                distributor.backpressure = policy;
+                distributor.congestionGrace = grace;
+            }
+            Log.info("Backpressure policy set to @, disconnecting after @ ms of congestion.", policy, grace);
+        });
+
+        handler.register("schedule", "[bulk-water] [control-weight] [bulk-weight]", "Sets how stream chunks are interleaved with other packets.", args -> {
+            var first = shards.distributors[0];
+            if (args.length > 0) {
+                float bulkWater = Strings.parseFloat(args[0], first.bulkWater);
+                int controlWeight = args.length > 1 ? Strings.parseInt(args[1], first.controlWeight) : first.controlWeight;
+                int bulkWeight = args.length > 2 ? Strings.parseInt(args[2], first.bulkWeight) : first.bulkWeight;
+
+                for (var distributor : shards.distributors) {
+                    distributor.bulkWater = bulkWater;
+                    distributor.controlWeight = controlWeight;
+                    distributor.bulkWeight = bulkWeight;
+                }
+            }
+
+            Log.info("Stream chunks are written up to @% of the write buffer, above it other packets get @ bytes for @ of chunks. @ chunks were queued.",
+                    (int) (first.bulkWater * 100), first.controlWeight, first.bulkWeight, Metrics.scheduled.sum());
+        });
+
+        handler.register("admission", "[total] [per-address] [handshake]", "Sets connection caps and the time in ms to send a link.", args -> {
+            var first = shards.distributors[0];
+            if (args.length > 0) {
+                int total = Strings.parseInt(args[0], first.maxConnections);
+                int perAddress = args.length > 1 ? Strings.parseInt(args[1], first.maxConnectionsPerAddress) : first.maxConnectionsPerAddress;
+                int handshake = args.length > 2 ? Strings.parseInt(args[2], first.handshakeTimeout) : first.handshakeTimeout;
+
+                for (var distributor : shards.distributors) {
+                    distributor.maxConnections = total;
+                    distributor.maxConnectionsPerAddress = perAddress;
+                    distributor.handshakeTimeout = handshake;
+                }
             }
+
+            Log.info("Up to @ connections, @ per address, @ ms to send a link. @ connections open. Loopback is @.",
+                    first.maxConnections, first.maxConnectionsPerAddress, first.handshakeTimeout, Distributor.open.get(), Distributor.trustLoopback ? "exempt" : "capped");
         });
 
-        handler.register("ban", "<IP>", "Adds the IP to blacklist.", args -> {
-            Blacklist.add(args[0]);
+        handler.register("timeouts", "[free] [pair] [room]", "Sets the time in seconds without traffic after which free redirectors, pairs and rooms are closed.", args -> {
+            var first = shards.distributors[0];
+            if (args.length > 0) {
+                int free = Strings.parseInt(args[0], first.freeTimeout / 1000) * 1000;
+                int pair = args.length > 1 ? Strings.parseInt(args[1], first.pairTimeout / 1000) * 1000 : first.pairTimeout;
+                int room = args.length > 2 ? Strings.parseInt(args[2], first.roomTimeout / 1000) * 1000 : first.roomTimeout;
+
+                for (var distributor : shards.distributors) {
+                    distributor.freeTimeout = free;
+                    distributor.pairTimeout = pair;
+                    distributor.roomTimeout = room;
+                }
+            }
+
+            Log.info("Free redirectors close after @ s, pairs after @ s and rooms after @ s without traffic. @ free, @ pairs and @ rooms reaped.",
+                    first.freeTimeout / 1000, first.pairTimeout / 1000, first.roomTimeout / 1000,
+                    Metrics.reapedFree.sum(), Metrics.reapedPairs.sum(), Metrics.reapedRooms.sum());
+        });
+
+        handler.register("capture", "<all/off/link> [directory]", "Records the relayed frames of all rooms or of one room, see the replay tool.", args -> {
+            if (args[0].equals("off")) {
+                for (var distributor : shards.distributors) {
+                    var capture = distributor.capture;
+                    distributor.capture = null;
+                    if (capture != null) distributor.execute(capture::close); // after the frame being written, if any
+                }
+                shards.links.values().forEach(room -> room.captured = false);
+                return;
+            }
+
+            var room = args[0].equals("all") ? null : shards.links.get(args[0]);
+            if (room == null && !args[0].equals("all")) {
+                Log.err("Room @ not found.", args[0]);
+                return;
+            }
+
+            if (shards.distributors[0].capture == null) {
+                var directory = Path.of(args.length > 1 ? args[1] : System.getProperty("claj.capture.dir", "captures"), String.valueOf(System.currentTimeMillis()));
+                long start = System.nanoTime();
+
+                try {
+                    Files.createDirectories(directory);
+                    for (var distributor : shards.distributors)
+                        distributor.capture = new Capture(directory, distributor.shard, start,
+                                Integer.getInteger("claj.capture.segment", 64 << 20), Integer.getInteger("claj.capture.segments", 8));
+                } catch (IOException error) {
+                    Log.err("Could not start the capture", error);
+                    for (var distributor : shards.distributors) distributor.capture = null;
+                    return;
+                }
+                Log.info("Capturing into @.", directory.toAbsolutePath());
+            }
+
+            if (room != null) room.captured = true;
+            else for (var distributor : shards.distributors) distributor.capture.all = true;
+            Log.info("Capturing frames of @.", room != null ? "room " + room.link : "all rooms");
+        });
+
+        handler.register("ban", "<IP>", "Adds the IP or CIDR range to blacklist.", args -> {
+            if (!Blacklist.add(args[0])) {
+                Log.err("@ is not a valid IP or CIDR range.", args[0]);
+                return;
+            }
             Log.info("IP @ has been blacklisted.", args[0]);
         });
 
-        handler.register("unban", "<IP>", "Removes the IP from blacklist.", args -> {
-            Blacklist.remove(args[0]);
+        handler.register("unban", "<IP>", "Removes the IP or CIDR range from blacklist.", args -> {
+            if (!Blacklist.remove(args[0])) {
+                Log.err("@ is not a valid IP or CIDR range.", args[0]);
+                return;
+            }
             Log.info("IP @ has been removed from blacklist.", args[0]);
         });
 
@@ -78,11 +276,69 @@ public class Control {
             Blacklist.refresh();
         });
 
-        handler.register("exit", "Stop hosting distributor and exit the application.", args -> {
-            distributor.rooms.forEach(entry -> entry.value.sendMessage("[scarlet]\u26A0[] The server is shutting down.\nTry to reconnect in a minute."));
+        handler.register("drain", "[seconds/off]", "Refuses new rooms and clients, then exits once games in progress end or after the delay.", args -> {
+            if (args.length > 0 && args[0].equals("off")) {
+                drainDeadline = 0;
+                for (var distributor : shards.distributors) distributor.draining = false;
+                shards.accepting(true);
+                Log.info("Drain cancelled, new rooms and clients are accepted again.");
+                return;
+            }
+
+            boolean started = drainDeadline == 0;
+            drainDeadline = System.currentTimeMillis() + 1000L * (args.length > 0 ? Strings.parseInt(args[0], 600) : 600);
+            for (var distributor : shards.distributors) distributor.draining = true;
 
-            Log.info("Shutting down the application.");
-            distributor.stop();
+            Log.info("Draining, the server exits once games in progress end or in @ seconds.", (drainDeadline - System.currentTimeMillis()) / 1000);
+            if (shards.accepting(false)) Log.info("New connections are left to the next version bound to the port.");
+            else Log.info("The arcnet engine keeps the port, start the next version on another one.");
+            if (started) {
+                int drain = ++drains;
+                Threads.daemon("Application Drain", () -> drain(drain));
+            }
         });
+
+        handler.register("exit", "Stop hosting distributor and exit the application.", args -> exit());
+    }
+
+    /** Reports what is left to relay every few seconds, until no pair is left or the deadline passes. */
+    private void drain(int drain) {
+        long lastBytes = Metrics.bytesToClient.sum() + Metrics.bytesToHost.sum();
+
+        while (true) {
+            Threads.sleep(5000);
+            long deadline = drainDeadline;
+            if (deadline == 0 || drain != drains) return;
+
+            int pairs = 0;
+            long pending = 0;
+            for (var distributor : shards.distributors) {
+                try {
+                    var load = distributor.load().get(1, TimeUnit.SECONDS);
+                    pairs += load.pairs();
+                    pending += load.pending();
+                } catch (Exception ignored) {} // the shard is stopped or too busy, it is left out of this report
+            }
+
+            long bytes = Metrics.bytesToClient.sum() + Metrics.bytesToHost.sum();
+            long left = Math.max(deadline - System.currentTimeMillis(), 0);
+            Log.info("Draining: @ rooms, @ pairs, @ KiB in flight, @ KiB/s relayed, @ seconds left.",
+                    shards.links.size(), pairs, pending >> 10, (bytes - lastBytes) / 5 >> 10, left / 1000);
+            lastBytes = bytes;
+
+            if (pairs == 0 || left == 0) {
+                Log.info(pairs == 0 ? "All games ended." : "Drain deadline passed with @ pairs left.", pairs);
+                exit();
+                return;
+            }
+        }
+    }
+
+    private void exit() {
+        shards.links.values().forEach(room -> room.sendMessage("[scarlet]\u26A0[] The server is shutting down.\nTry to reconnect in a minute."));
+
+        Log.info("Shutting down the application.");
+        Metrics.stop();
+        shards.stop();
     }
 }
@@ -0,0 +1,114 @@
+package com.xpdustry.claj.server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Knows which node of the cluster owns each room, so that a node can relay hosts and clients to the room they ask for.
+ * Implementations are called from the event loops of all shards.
+ */
+public interface Directory {
+
+    /** Returns the link given to the host of a room created on the owner, recording it if needed. The link may encode the owner. */
+    String register(String link, Node owner);
+
+    void unregister(String link);
+
+    /** Returns the node owning the room, or null if it is unknown. */
+    Node lookup(String link);
+
+    /** Whether the address is the one of a node, which may relay connections on behalf of others. */
+    boolean trusted(InetAddress address);
+
+    /** Node of the cluster, reachable at the port all of its shards share. */
+    record Node(int id, String address, int port) {
+
+        public static Node parse(int id, String node) {
+            int colon = node.lastIndexOf(':');
+            return new Node(id, node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+        }
+    }
+
+    /** Resolves the addresses of the nodes once, they are compared with the address of every node connection. */
+    static InetAddress[] resolve(Node... nodes) throws UnknownHostException {
+        var addresses = new InetAddress[nodes.length];
+        for (int i = 0; i < nodes.length; i++) addresses[i] = InetAddress.getByName(nodes[i].address());
+        return addresses;
+    }
+
+    /** Directory shared by nodes running in the same process, mostly to run a whole cluster on one machine. */
+    class Local implements Directory {
+
+        public final Node[] nodes;
+        private final InetAddress[] addresses;
+        private final ConcurrentHashMap<String, Node> links = new ConcurrentHashMap<>();
+
+        public Local(Node... nodes) throws UnknownHostException {
+            this.nodes = nodes;
+            this.addresses = resolve(nodes);
+        }
+
+        @Override
+        public String register(String link, Node owner) {
+            links.put(link, owner);
+            return link;
+        }
+
+        @Override
+        public void unregister(String link) {
+            links.remove(link);
+        }
+
+        @Override
+        public Node lookup(String link) {
+            return links.get(link);
+        }
+
+        @Override
+        public boolean trusted(InetAddress address) {
+            for (var node : addresses) if (node.equals(address)) return true;
+            return false;
+        }
+    }
+
+    /**
+     * Directory without any shared state, the first symbol of a link after its prefix is the id of the node owning it.
+     * Every node must be given the same list of nodes, in the same order.
+     */
+    class Encoded implements Directory {
+
+        public final Node[] nodes;
+        private final InetAddress[] addresses;
+        private final String symbols = new String(Distributor.symbols);
+
+        public Encoded(Node... nodes) throws UnknownHostException {
+            if (nodes.length > Distributor.symbols.length) throw new IllegalArgumentException("Too many nodes, at most " + Distributor.symbols.length + " are supported!");
+
+            this.nodes = nodes;
+            this.addresses = resolve(nodes);
+        }
+
+        @Override
+        public String register(String link, Node owner) {
+            return link.substring(0, 4) + Distributor.symbols[owner.id()] + link.substring(5);
+        }
+
+        @Override
+        public void unregister(String link) {}
+
+        @Override
+        public Node lookup(String link) {
+            if (link.length() < 5) return null;
+
+            int id = symbols.indexOf(link.charAt(4));
+            return id >= 0 && id < nodes.length ? nodes[id] : null;
+        }
+
+        @Override
+        public boolean trusted(InetAddress address) {
+            for (var node : addresses) if (node.equals(address)) return true;
+            return false;
+        }
+    }
+}
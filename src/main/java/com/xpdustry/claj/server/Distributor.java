@@ -1,8 +1,13 @@
 package com.xpdustry.claj.server;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import arc.math.Mathf;
 import arc.net.Connection;
@@ -11,15 +16,16 @@ import arc.net.FrameworkMessage;
 import arc.net.NetListener;
 import arc.net.Server;
 import arc.struct.IntMap;
-import arc.struct.IntMap.Entry;
+import arc.struct.Queue;
+import arc.struct.Seq;
 import arc.util.Log;
-import arc.util.Ratekeeper;
-
-import net.jpountz.lz4.*;
+import arc.util.Time;
 
 
 /**
  * It is an entry point for clients, distributes their packets to redirectors.
+ * Each distributor is a shard with its own event loop, rooms are owned by the shard their host connected to.
+ * With the NIO engine, hosts and clients naming a room are handed to its shard, so a room never involves two loops.
  * 
  * @author xzxADIxzx
  */
@@ -28,46 +34,293 @@ public class Distributor extends Server {
     /** List of all characters that are allowed in a link. */
     public static final char[] symbols = "AaBbCcDdEeFfGgHhIiJjKkLlMmNnOoPpQqRrSsTtUuVvWwYyXxZz".toCharArray();
 
-    /** Limit for packet count sent within 3 sec that will lead to a disconnect. Note: only for clients. */
-    public int spamLimit = 500;
-
-    /** Map containing the connection id and its redirector. */
+    /** Maximum number of connections accepted across all shards, and per source address across all shards. Other nodes of the cluster are not capped per address. */
+    public int maxConnections = 16384, maxConnectionsPerAddress = 128;
+    /** Whether loopback connections are exempt from the caps and budgets of their address, for load generators and replays on the same machine. */
+    public static volatile boolean trustLoopback;
+    /** Time in milliseconds a connection has to send new, host or join before being disconnected. */
+    public int handshakeTimeout = 5000;
+
+    /** Time in milliseconds without relayed traffic after which free redirectors, pairs and rooms are closed. */
+    public int freeTimeout = 600_000, pairTimeout = 60_000, roomTimeout = 3_600_000;
+
+    /** Whether the server is going away, new rooms and clients are refused while games in progress keep going. */
+    public volatile boolean draining;
+
+    /** Number of connections admitted by all shards. */
+    public static final AtomicInteger open = new AtomicInteger();
+    /** Budgets of the source addresses of the connections of all shards, see {@link Budget#key}. Connections are added in {@code compute}, so the sweep never drops a budget in use. */
+    static final ConcurrentHashMap<Long, Budget> addresses = new ConcurrentHashMap<>();
+
+    /** Rates above which connections are disconnected, hosts get a higher but still bounded budget. */
+    public Limit clientLimit = new Limit(250, 256 << 10), hostLimit = new Limit(2000, 8 << 20);
+    /** Rates shared by all connections from the same address, or by all redirectors of a room. */
+    public Limit addressLimit = new Limit(4000, 16 << 20), roomLimit = new Limit(8000, 32 << 20);
+
+    /** Number of free redirectors each room asks its host to keep ready for joining clients. */
+    public int poolSize = 3;
+    /** Time in milliseconds a client may wait for a redirector before being disconnected. */
+    public int joinTimeout = 5000;
+    /** Time in milliseconds after which unanswered redirector requests are made again. */
+    public int requestTimeout = 5000;
+    /** Bytes a waiting client may send before its host connects. */
+    public int backlogSize = 16384;
+
+    /** Size of the write and object buffers that arcnet allocates for every connection. */
+    public final int writeBufferSize, objectBufferSize;
+    /** Fraction of the write buffer above which a receiver is considered congested. */
+    public float highWater = 0.75f;
+    /** Time in milliseconds a receiver may stay congested before being disconnected. */
+    public int congestionGrace = 5000;
+    public Backpressure backpressure = Backpressure.drop;
+    /** Fraction of the write buffer up to which stream chunks are written, above it they wait behind other packets. */
+    public float bulkWater = 0.25f;
+    /** Shares of the write buffer given to other packets and to stream chunks while chunks are waiting. */
+    public int controlWeight = 4, bulkWeight = 1;
+
+    /** Map containing the connection id of the host and its room. */
     public IntMap<Room> rooms = new IntMap<>();
 
+    /** Map containing the link and its room, shared between all shards. */
+    public final ConcurrentHashMap<String, Room> links;
+
+    /** Index of the shard in its group. */
+    public final int shard;
+    /** Tasks posted by other shards, executed on the event loop of this one. */
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /** Whether the engine was woken up for tasks it did not run yet, so that a burst of them wakes it once. */
+    private final AtomicBoolean woken = new AtomicBoolean();
+    private volatile boolean running;
+    private Thread thread;
+
     /** Map containing the connection id and its redirector. */
     public IntMap<Redirector> redirectors = new IntMap<>();
+    /** Map containing the connection id and its proxy, for connections asking for rooms owned by other nodes. */
+    public IntMap<Proxy> proxies = new IntMap<>();
+
+    /** Directory of the cluster and node this shard belongs to, both null unless clustered. */
+    public Directory directory;
+    public Directory.Node node;
+
+    /** Redirectors of waiting clients that joined through this shard, in order of their deadline. */
+    private final Queue<Redirector> waiting = new Queue<>();
+    /** Redirectors with frames parked or scheduled by this shard because their receiver was congested. */
+    final Seq<Redirector> parked = new Seq<>(false, 16);
+    /** Connections that did not send a link yet, in order of their deadline. */
+    private final Queue<Connection> handshaking = new Queue<>();
+    private long nextTick, nextSweep;
+
+    /** Redirectors hosted through this shard and rooms owned by it, visited when they may have become idle. */
+    private final TimerWheel<Redirector> redirectorWheel = new TimerWheel<>(1000, 1024);
+    private final TimerWheel<Room> roomWheel = new TimerWheel<>(1000, 1024);
+    /** Records the frames read by this shard, null unless a capture is running. */
+    public volatile Capture capture;
+    /** Time of the current iteration of the event loop, stamped on redirectors for every frame. */
+    long now;
+    /** Frames forwarded by this shard, counted to pick the ones recorded in the histograms of {@link Metrics}. */
+    int forwarded;
+
+    public final Serializer serializer;
+    public final Listener listener;
+    /** Transport used instead of the one of arcnet, null unless selected. */
+    public NioEngine engine;
+    /** Engine of the connections to other nodes of the cluster when the shard runs arcnet, bound to no port. */
+    private NioEngine outbound;
+
+    public Distributor(int shard, ConcurrentHashMap<String, Room> links) {
+        this(shard, links, 32768, 8192);
+    }
+
+    public Distributor(int shard, ConcurrentHashMap<String, Room> links, int writeBufferSize, int objectBufferSize) {
+        this(shard, links, writeBufferSize, objectBufferSize, new Serializer());
+    }
 
-    /************************/
-    // Manually constructs an InfoMessageCallPacket to inform connecting clients that this CLaJ version is obsolete.
-    final String message = "[yellow]\u26A0 \u26A0 \u26A0 WARNING \u26A0 \u26A0 \u26A0[] \n"
-                         + "The scheme-size CLaJ is no longer maintained! \n"
-                         + "Please install the dedicated 'claj' mod in the mod browser. \n\n"
-                         + "[lightgray]If you're using scheme-size only for the CLaJ feature, it's recommended to uninstall it.";
-    final byte[] messageBytes = message.getBytes(Charset.forName("UTF-8"));
-    final ByteBuffer infoMessagePacket = ByteBuffer.allocate(1 + 2 + 1 + 1 + 2 + messageBytes.length) // total length
-                                                   .put((byte)0) // id (will be populated dynamically)
-                                                   .putShort((short)(3 + messageBytes.length)) // length
-                                                   .put((byte)0) // no compression
-                                                   .put((byte)1) // non null string
-                                                   .putShort((short)messageBytes.length) // message length
-                                                   .put(messageBytes) // encoded message
-                                                   .rewind();
-    final ByteBuffer decompressBuffer = ByteBuffer.allocate(32768);
-    final LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
-    final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
-    /************************/
-
-    public Distributor() {
-        super(32768, 8192, new Serializer());
-        addListener(new Listener());
+    private Distributor(int shard, ConcurrentHashMap<String, Room> links, int writeBufferSize, int objectBufferSize, Serializer serializer) {
+        super(writeBufferSize, objectBufferSize, serializer);
+        this.writeBufferSize = writeBufferSize;
+        this.objectBufferSize = objectBufferSize;
+        this.serializer = serializer;
+        this.shard = shard;
+        this.links = links;
+        addListener(listener = new Listener());
     }
 
     public void run(int port) throws IOException {
-        Blacklist.refresh(); // refresh github's ips
-        Log.info("Distributor hosted on port @.", port);
+        Log.info("Distributor shard @ hosted on port @.", shard, port);
+
+        if (engine != null) engine.bind(port);
+        else {
+            bind(port, port);
+            serializer.datagrams = datagrams();
+            if (directory != null) (outbound = new NioEngine(this, listener)).open();
+        }
+        thread = Thread.currentThread();
+        running = true;
+
+        while (running) {
+            now = Time.millis();
+            // short timeout so that parked frames are flushed soon, tasks posted by other threads wake the NIO engine up
+            if (engine != null) engine.update(10);
+            else if (outbound != null) {
+                // arcnet cannot be woken up by the other selector, so it waits less while frames are proxied
+                update(outbound.size() == 0 ? 10 : 1);
+                outbound.update(0);
+            } else update(10);
+            woken.set(false);
+            for (Runnable task; (task = tasks.poll()) != null;) task.run();
+            // the write buffers drain on their own, there is no event telling when to flush parked frames
+            if (!parked.isEmpty()) parked.removeAll(redirector -> redirector.drain(this));
+
+            now = Time.millis();
+            if (now >= nextTick) {
+                nextTick = now + 250;
+                tick(now);
+            }
+        }
+
+        if (engine != null) engine.close();
+        if (outbound != null) outbound.close();
+    }
+
+    /** Read buffer of the UDP connection of arcnet, which it does not expose, or null if it cannot be found. */
+    private ByteBuffer datagrams() {
+        try {
+            var udp = Server.class.getDeclaredField("udp");
+            udp.setAccessible(true);
+            Object connection = udp.get(this);
+
+            var buffer = connection.getClass().getDeclaredField("readBuffer");
+            buffer.setAccessible(true);
+            return (ByteBuffer) buffer.get(connection);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Log.err("Could not find the UDP read buffer of arcnet, datagrams will be relayed over TCP.", e);
+            return null;
+        }
+    }
+
+    /** Engine opening the connections of this shard to other nodes of the cluster, on its own loop. */
+    public NioEngine outbound() {
+        return engine != null ? engine : outbound;
+    }
+
+    /** Whether the connection was handed to another shard, which keeps track of it from then on. */
+    private boolean moved(Connection connection) {
+        return connection instanceof NioEngine.NioConnection nio && nio.engine != engine;
+    }
+
+    /** Periodic work of the shard, disconnects connections that waited too long for something. */
+    private void tick(long now) {
+        redirectorWheel.advance(now, redirector -> expire(redirector, now));
+        roomWheel.advance(now, room -> expire(room, now));
+
+        while (!handshaking.isEmpty() && ((Budget) handshaking.first().getArbitraryData()).deadline <= now) {
+            var connection = handshaking.removeFirst();
+            if (!connection.isConnected() || moved(connection) || rooms.containsKey(connection.getID()) || redirectors.containsKey(connection.getID()) || proxies.containsKey(connection.getID())) continue;
+
+            Log.info("Connection @ did not send a link in time.", connection.getID());
+            Metrics.rejected.increment();
+            connection.close(DcReason.closed);
+        }
+
+        // the budgets are shared, the first shard sweeps them for all
+        if (shard == 0 && now >= nextSweep) {
+            nextSweep = now + 10000;
+
+            // budgets of addresses without connections are forgotten once they would be full again anyway
+            long nanos = System.nanoTime(), idle = Limit.burst * 1_000_000_000L;
+            for (long key : addresses.keySet()) {
+                addresses.computeIfPresent(key, (k, budget) -> budget.connections == 0 && nanos - budget.last > idle ? null : budget);
+            }
+        }
+
+        while (!waiting.isEmpty() && waiting.first().deadline <= now) {
+            var redirector = waiting.removeFirst();
+            if (redirector.host != null || redirector.closed) continue;
+
+            Log.info("Connection @ waited too long for a redirector.", redirector.client.getID());
+            redirector.client.close(DcReason.error);
+        }
+    }
+
+    /** Closes the redirector if nothing was relayed for too long, otherwise schedules it again. Runs on the shard of the host. */
+    private void expire(Redirector redirector, long now) {
+        var room = redirector.room;
+        if (redirector.closed || room == null) return; // already closed, forget it
+        if (redirector.host == null) { // the host of a waiting client is still being attached by the other shard
+            redirectorWheel.schedule(redirector, now + pairTimeout);
+            return;
+        }
+
+        boolean free = redirector.client == null;
+        long expiry = redirector.active + (free ? freeTimeout : pairTimeout);
+        if (now < expiry) {
+            // free redirectors may get a client from another shard at any time, so they are checked at the pace of pairs
+            redirectorWheel.schedule(redirector, free ? Math.min(expiry, now + pairTimeout) : expiry);
+            return;
+        }
+        // the pool of an open room must stay full, only free redirectors beyond it are closed
+        if (free && room.free.size() <= room.owner.poolSize) {
+            redirectorWheel.schedule(redirector, now + pairTimeout);
+            return;
+        }
+
+        Log.info("Redirector of connection @ closed after @ seconds without traffic.", redirector.host.getID(), (now - redirector.active) / 1000);
+        (free ? Metrics.reapedFree : Metrics.reapedPairs).increment();
+        redirector.disconnected(null, DcReason.timeout);
+    }
+
+    /** Closes the room if none of its redirectors relayed anything for too long, otherwise schedules it again. Runs on the owner. */
+    private void expire(Room room, long now) {
+        if (rooms.get(room.host.getID()) != room) return; // already closed, forget it
+
+        long expiry = room.active + roomTimeout;
+        if (now < expiry) {
+            roomWheel.schedule(room, expiry);
+            return;
+        }
+
+        Log.info("Room @ closed after @ minutes without traffic.", room.link, (now - room.active) / 60000);
+        Metrics.reapedRooms.increment();
+        room.host.close(DcReason.timeout); // the room itself is closed when its host disconnects
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (engine != null) engine.wakeup();
+        super.stop();
+    }
+
+    /** Counts the pairs hosted through this shard and the bytes waiting in the write buffers of their connections. */
+    public CompletableFuture<Load> load() {
+        var load = new CompletableFuture<Load>();
+        execute(() -> {
+            int pairs = 0;
+            long pending = 0;
+
+            for (var connection : engine != null ? engine.connections() : getConnections()) {
+                var redirector = redirectors.get(connection.getID());
+                if (redirector == null) continue;
+
+                pending += connection.getTcpWriteBufferSize();
+                if (connection == redirector.host && redirector.client != null) pairs++;
+            }
+            load.complete(new Load(pairs, pending));
+        });
+        return load;
+    }
+
+    public record Load(int pairs, long pending) {}
 
-        bind(port, port);
-        run();
+    /** Runs the task on the event loop of this shard, immediately if called from it. */
+    public void execute(Runnable task) {
+        if (Thread.currentThread() == thread)
+            task.run();
+        else {
+            tasks.add(task);
+            // arcnet cannot be woken up from outside, its loop waits 10 ms at most
+            if (engine != null && !woken.getAndSet(true)) engine.wakeup();
+        }
     }
 
     // region room management
@@ -81,17 +334,11 @@ public class Distributor extends Server {
     }
 
     public Room find(String link) {
-        for (Entry<Room> entry : rooms)
-            if (entry.value.link.equals(link)) return entry.value;
-
-        return null;
+        return links.get(link);
     }
 
     public Room find(Redirector redirector) {
-        for (Entry<Room> entry : rooms)
-            if (entry.value.redirectors.contains(redirector)) return entry.value;
-
-        return null;
+        return redirector.room;
     }
 
     // endregion
@@ -100,139 +347,273 @@ public class Distributor extends Server {
 
         @Override
         public void connected(Connection connection) {
-            if (Blacklist.contains(connection.getRemoteAddressTCP().getAddress().getHostAddress())) {
+            // arcnet already allocated the buffers of the connection, the NIO engine admits it before allocating anything
+            if (!admit(connection.getRemoteAddressTCP().getAddress())) {
                 connection.close(DcReason.closed);
                 return;
             }
+            accepted(connection);
+        }
+
+        /** Returns whether a connection from the address may be accepted. */
+        boolean admit(InetAddress address) {
+            if (Blacklist.contains(address)) {
+                Metrics.blacklisted.increment();
+                return false;
+            }
+
+            var source = relay(address) ? null : addresses.get(Budget.key(address));
+            if (open.get() >= maxConnections || (source != null && source.connections >= maxConnectionsPerAddress)) {
+                Log.debug("Connection from @ rejected, too many connections.", address.getHostAddress());
+                Metrics.rejected.increment();
+                return false;
+            }
+            return true;
+        }
+
+        /** Counts an admitted connection and gives it a budget and a deadline to send a link. */
+        void accepted(Connection connection) {
+            var address = connection.getRemoteAddressTCP().getAddress();
+            open.incrementAndGet();
 
             Log.info("Connection @ received!", connection.getID());
-            connection.setArbitraryData(new Ratekeeper());
+            Metrics.connections.increment();
+
+            var source = relay(address) ? new Budget() : addresses.compute(Budget.key(address), (key, budget) -> {
+                if (budget == null) budget = new Budget();
+                synchronized (budget) {
+                    budget.connections++;
+                }
+                return budget;
+            });
+
+            var budget = new Budget();
+            budget.source = source;
+            budget.deadline = Time.millis() + handshakeTimeout;
+            connection.setArbitraryData(budget);
+            handshaking.addLast(connection);
         }
 
         @Override
         public void disconnected(Connection connection, DcReason reason) {
             Log.info("Connection @ lost: @.", connection.getID(), reason);
+            Metrics.disconnections.increment();
+
+            if (connection.getArbitraryData() instanceof Budget budget) {
+                synchronized (budget.source) {
+                    budget.source.connections--;
+                }
+                open.decrementAndGet();
+            }
+
+            var proxy = proxies.remove(connection.getID());
+            if (proxy != null) {
+                proxy.close();
+                return;
+            }
 
             var room = rooms.get(connection.getID());
             if (room != null) {
-                room.close(); // disconnects all related redirectors
                 rooms.remove(connection.getID());
+                links.remove(room.link);
+                if (directory != null) directory.unregister(room.link);
+                room.close(); // disconnects all related redirectors
                 return;
             }
 
-            var redirector = redirectors.get(connection.getID());
+            // the other side may belong to another shard, which removes it from its own map when it gets closed
+            var redirector = redirectors.remove(connection.getID());
             if (redirector == null) return;
 
-            redirectors.remove(redirector.host.getID());
-            if (redirector.client != null) redirectors.remove(redirector.client.getID());
-
             // called after deletion to prevent double close
             redirector.disconnected(connection, reason);
+            redirector.release(Distributor.this);
 
-            room = find(redirector);
-            if (room != null) room.redirectors.remove(redirector);
+            var parent = find(redirector);
+            if (parent != null) parent.owner.execute(() -> parent.remove(redirector));
         }
 
         @Override
         public void received(Connection connection, Object object) {
-            var rate = (Ratekeeper) connection.getArbitraryData();
-            if (!rate.allow(3000L, spamLimit)) {
-                rate.occurences = -spamLimit; // reset to prevent message spam
+            if (limited(connection, object instanceof ByteBuffer buffer ? buffer.remaining() : 0)) return;
 
+            // raw frames are the common case, so they are forwarded without going through the rest of the dispatch
+            if (object instanceof ByteBuffer buffer) {
                 var redirector = redirectors.get(connection.getID());
-                if (redirector != null && connection == redirector.host) {
-                    Log.warn("Connection @ spammed with packets but not disconnected due to being a host.", connection.getID());
-                    return; // host can spam packets when killing core and etc.
-                }
-
-                Log.warn("Connection @ disconnected due to packet spam.", connection.getID());
-                if (redirector != null) {
-                    var room = find(redirector);
-                    if (room != null) {
-                        room.sendMessage("[scarlet]\u26A0[] Connection closed due to packet spam.");
-                        room.redirectors.remove(redirector);
-                    }
+                if (redirector == null) {
+                    var proxy = proxies.get(connection.getID());
+                    if (proxy != null) proxy.forward(buffer, serializer.udp);
+                    return;
                 }
 
-                connection.close(DcReason.closed);
+                redirector.active = now;
+                redirector.forward(connection, buffer, serializer.udp);
                 return;
             }
 
             if (object instanceof FrameworkMessage) return;
             if (object instanceof String link) {
+                // links relayed by another node of the cluster carry the address of the connection behind it
+                String ip = Main.getIP(connection);
+                boolean relayed = false;
+                int at = link.indexOf('@');
+                if (at != -1) {
+                    relayed = directory != null && directory.trusted(connection.getRemoteAddressTCP().getAddress());
+                    if (relayed) ip = link.substring(at + 1);
+                    link = link.substring(0, at);
+                }
+
+                if (draining && (link.equals("new") || link.startsWith("join"))) {
+                    connection.sendTCP("[scarlet]\u26A0[] The server is restarting.\nTry to reconnect in a minute.");
+                    connection.close(DcReason.closed);
+                    return;
+                }
+
                 if (link.equals("new")) {
                     link = generateLink();
+                    if (directory != null) link = directory.register(link, node);
 
                     connection.sendTCP(link);
-                    rooms.put(connection.getID(), new Room(link, connection));
+
+                    var room = new Room(link, connection, Distributor.this);
+                    rooms.put(connection.getID(), room);
+                    links.put(link, room);
+                    room.active = now;
+                    roomWheel.schedule(room, now + roomTimeout);
 
                     Log.info("Connection @ created a room @.", connection.getID(), link);
                 } else if (link.startsWith("host")) {
                     var room = find(link.substring(4));
-                    if (room == null || !Main.getIP(room.host).equals(Main.getIP(connection))) {
+                    if (room == null && !relayed && proxy(connection, link, ip, true)) return;
+                    if (room == null || !Main.getIP(room.host).equals(ip)) {
                         connection.close(DcReason.error); // kick the connection if it tries to host a redirector without permission
                         return;
                     }
+                    if (handoff(connection, room, object)) return;
+
+                    room.hosted();
+
+                    // clients that could not find a free redirector are served first
+                    var waiter = room.pollWaiting();
+                    if (waiter != null) {
+                        redirectors.put(connection.getID(), waiter);
+                        waiter.active = now;
+                        redirectorWheel.schedule(waiter, now + pairTimeout);
+                        waiter.clientShard.execute(() -> waiter.attach(connection, Distributor.this));
+
+                        Log.info("Connection @ hosted a redirector for waiting connection @ in room @.", connection.getID(), waiter.client.getID(), room.link);
+                        return;
+                    }
 
-                    var redirector = new Redirector(connection);
-                    room.redirectors.add(redirector);
+                    var redirector = new Redirector(connection, Distributor.this, room);
                     redirectors.put(connection.getID(), redirector);
+                    redirector.active = now;
+                    redirectorWheel.schedule(redirector, now + Math.min(freeTimeout, pairTimeout));
+                    room.owner.execute(() -> room.add(redirector));
 
                     Log.info("Connection @ hosted a redirector in room @.", connection.getID(), room.link);
                 } else if (link.startsWith("join")) {
                     var room = find(link.substring(4));
                     if (room == null) {
+                        if (!relayed && proxy(connection, link, ip, false)) return;
                         connection.close(DcReason.error);
                         return;
                     }
+                    if (handoff(connection, room, object)) return;
 
-                    var redirector = room.redirectors.find(r -> r.client == null);
+                    var redirector = room.poll();
                     if (redirector == null) {
-                        connection.close(DcReason.error); // no empty redirectors
+                        // no empty redirectors, so the client waits until the host connects one
+                        var waiter = new Redirector(room, connection, Distributor.this, backlogSize, Time.millis() + joinTimeout);
+                        redirectors.put(connection.getID(), waiter);
+                        waiting.addLast(waiter);
+                        room.waiting.add(waiter);
+                        room.owner.execute(() -> room.add(waiter));
+                        room.refill();
+
+                        Log.info("Connection @ is waiting for a redirector in room @.", connection.getID(), room.link);
                         return;
                     }
 
+                    redirector.active = now; // the pair gets a full timeout before its first frame
+                    redirector.clientShard = Distributor.this;
                     redirector.client = connection;
                     redirectors.put(connection.getID(), redirector);
-                    room.sendMessage("new"); // ask to create a new redirector for the future
+                    // the host may have left on another shard since the poll, which then saw no client to close
+                    if (redirector.closed) {
+                        connection.close(DcReason.closed);
+                        return;
+                    }
+                    room.refill(); // ask to create new redirectors for the future
 
                     Log.info("Connection @ joined to room @.", connection.getID(), room.link);
                 }
-
-                return;
             }
+        }
 
-            var redirector = redirectors.get(connection.getID());
-            if (redirector != null) {
-                // Manually send an InfoMessageCallPacket to inform connecting clients that this CLaJ version is obsolete.
-                if (object instanceof ByteBuffer buffer) {
-                    final int lastPosition = buffer.position();
-
-                    // If it's a ConnectPacket, determine if it's a v7 or v8 client
-                    if (buffer.get() == 3) {
-                        final int length = buffer.getShort() & 0xffff;
-                        final byte compression = buffer.get();
-                        final int version;
-
-                        if (compression == 0) {
-                            version = buffer.getInt();
-                        } else {
-                            decompressor.decompress(buffer, buffer.position(), decompressBuffer, 0, length);
-                            decompressBuffer.rewind();
-                            version = decompressBuffer.getInt();
-                        }
-
-                        infoMessagePacket.rewind();
-                        // id=40 on v7 and 48 on v8
-                        infoMessagePacket.put(0, (byte)(version < 147 && version != -1 ? 40 : 48));
-                        connection.sendTCP(infoMessagePacket);
-                    }
+        /**
+         * Whether the address relays many connections, so each of them gets a budget of its own instead of sharing one.
+         * It is another node of the cluster, or this machine if {@link #trustLoopback} is set.
+         */
+        private boolean relay(InetAddress address) {
+            return trustLoopback && address.isLoopbackAddress() || directory != null && directory.trusted(address);
+        }
 
-                    buffer.position(lastPosition);
-                }
+        /** Hands the connection to the shard owning the room, which handles the link again. Returns false if it is already there or cannot move. */
+        private boolean handoff(Connection connection, Room room, Object link) {
+            var owner = room.owner;
+            if (owner == Distributor.this || engine == null || owner.engine == null || !(connection instanceof NioEngine.NioConnection nio)) return false;
+
+            engine.handoff(nio, owner.engine, link);
+            return true;
+        }
+
+        /** Relays the connection to the node owning the room it asks for. Returns false if no other node owns it. */
+        private boolean proxy(Connection connection, String link, String ip, boolean host) {
+            if (directory == null) return false;
 
-                redirector.received(connection, object);
+            var owner = directory.lookup(link.substring(4));
+            if (owner == null || owner.id() == node.id()) return false;
+
+            var proxy = new Proxy(connection, Distributor.this, host);
+            proxies.put(connection.getID(), proxy);
+            proxy.connect(owner, link + "@" + ip);
+            Metrics.proxied.increment();
+
+            Log.info("Connection @ relayed to node @ for room @.", connection.getID(), owner.id(), link.substring(4));
+            return true;
+        }
+
+        /** Takes the packet from the budgets of the connection, its address and its room. Returns whether one ran out and the connection was closed. */
+        private boolean limited(Connection connection, int size) {
+            var redirector = redirectors.get(connection.getID());
+            var room = redirector != null ? find(redirector) : rooms.get(connection.getID());
+            var proxy = redirector == null && room == null ? proxies.get(connection.getID()) : null;
+            // hosts can send a lot of packets when killing cores and etc.
+            boolean host = redirector != null ? connection == redirector.host : room != null || proxy != null && proxy.host;
+
+            long now = System.nanoTime();
+            var budget = (Budget) connection.getArbitraryData();
+            String scope;
+
+            if (!budget.take(host ? hostLimit : clientLimit, size, now))
+                scope = "connection";
+            else if (!budget.source.take(addressLimit, size, now))
+                scope = "address";
+            else if (room != null && !room.take(roomLimit, size, now))
+                scope = "room";
+            else
+                return false;
+
+            Log.warn("Connection @ disconnected due to exceeding the @ rate limit.", connection.getID(), scope);
+            Metrics.spamKicks.increment();
+            if (redirector != null && room != null) {
+                room.sendMessage("[scarlet]\u26A0[] Connection closed due to packet spam.");
+                room.owner.execute(() -> room.remove(redirector));
             }
+
+            connection.close(DcReason.closed);
+            return true;
         }
     }
 }
@@ -0,0 +1,107 @@
+package com.xpdustry.claj.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Looks for the ConnectPacket of a client to tell it that this CLaJ version is obsolete.
+ * Only the first frames of a client are inspected, see {@link Redirector#forward}.
+ */
+public final class Handshake {
+
+    /** Number of frames of a client inspected before giving up on finding its ConnectPacket. */
+    public static final int maxFrames = 4;
+    /** Returned by {@link #version} when the frame is not a ConnectPacket. */
+    public static final int none = Integer.MIN_VALUE;
+
+    /************************/
+    // Manually constructs an InfoMessageCallPacket to inform connecting clients that this CLaJ version is obsolete.
+    static final String message = "[yellow]\u26A0 \u26A0 \u26A0 WARNING \u26A0 \u26A0 \u26A0[] \n"
+                                + "The scheme-size CLaJ is no longer maintained! \n"
+                                + "Please install the dedicated 'claj' mod in the mod browser. \n\n"
+                                + "[lightgray]If you're using scheme-size only for the CLaJ feature, it's recommended to uninstall it.";
+    // id=40 on v7 and 48 on v8, each packet is immutable and wrapped for every send
+    static final byte[] v7Packet = infoMessagePacket((byte) 40), v8Packet = infoMessagePacket((byte) 48);
+    /************************/
+
+    private Handshake() {}
+
+    static byte[] infoMessagePacket(byte id) {
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(1 + 2 + 1 + 1 + 2 + messageBytes.length) // total length
+                         .put(id) // id
+                         .putShort((short) (3 + messageBytes.length)) // length
+                         .put((byte) 0) // no compression
+                         .put((byte) 1) // non null string
+                         .putShort((short) messageBytes.length) // message length
+                         .put(messageBytes) // encoded message
+                         .array();
+    }
+
+    /** Returns the InfoMessageCallPacket matching the version of the client. */
+    public static ByteBuffer infoMessage(int version) {
+        return ByteBuffer.wrap(version < 147 && version != -1 ? v7Packet : v8Packet);
+    }
+
+    /**
+     * Reads the version of the client if the frame is a ConnectPacket, otherwise returns {@link #none}.
+     * The position of the frame is left untouched and only the first bytes of a compressed body are decoded.
+     */
+    public static int version(ByteBuffer frame) {
+        int start = frame.position(), end = frame.limit();
+        if (end - start < 8 || frame.get(start) != 3) return none;
+
+        // id, length of the uncompressed body, compression
+        if (frame.get(start + 3) == 0) return frame.getInt(start + 4);
+
+        byte[] head = new byte[4];
+        if (decodeHead(frame, start + 4, end, head) < head.length) return none;
+        return (head[0] & 0xff) << 24 | (head[1] & 0xff) << 16 | (head[2] & 0xff) << 8 | head[3] & 0xff;
+    }
+
+    /**
+     * Decodes the beginning of an LZ4 block until the output is full, instead of decompressing all of it.
+     * Returns the number of decoded bytes, which is less than the length of the output if the block is shorter or malformed.
+     */
+    static int decodeHead(ByteBuffer block, int position, int end, byte[] output) {
+        int written = 0;
+
+        while (position < end && written < output.length) {
+            int token = block.get(position++) & 0xff;
+
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int extra;
+                do {
+                    if (position >= end) return written;
+                    extra = block.get(position++) & 0xff;
+                    literals += extra;
+                } while (extra == 255);
+            }
+
+            for (; literals > 0 && written < output.length; literals--) {
+                if (position >= end) return written;
+                output[written++] = block.get(position++);
+            }
+            if (written == output.length || position + 2 > end) return written;
+
+            int offset = (block.get(position++) & 0xff) | (block.get(position++) & 0xff) << 8;
+            if (offset == 0 || offset > written) return written; // malformed, matches only refer to decoded bytes
+
+            int match = (token & 15) + 4;
+            if ((token & 15) == 15) {
+                int extra;
+                do {
+                    if (position >= end) return written;
+                    extra = block.get(position++) & 0xff;
+                    match += extra;
+                } while (extra == 255);
+            }
+
+            for (; match > 0 && written < output.length; match--, written++)
+                output[written] = output[written - offset];
+        }
+
+        return written;
+    }
+}
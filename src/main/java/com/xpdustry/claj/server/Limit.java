@@ -0,0 +1,17 @@
+package com.xpdustry.claj.server;
+
+/**
+ * Sustained rates allowed for a scope, a budget can hold up to {@link #burst} seconds of them.
+ * Instances are immutable so that the console can swap them while shards are reading them.
+ */
+public record Limit(int packets, int bytes) {
+
+    /** Seconds of traffic a budget can save up, like the 3 seconds window of the former packet counter. */
+    public static final int burst = 3;
+    public static final Limit unlimited = new Limit(Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+    @Override
+    public String toString() {
+        return packets + " packets/s and " + bytes + " bytes/s";
+    }
+}
@@ -3,8 +3,9 @@ package com.xpdustry.claj.server;
 import arc.net.ArcNet;
 import arc.net.Connection;
 import arc.util.Log;
+import arc.util.Threads;
 
-import java.time.LocalDateTime;
+import java.nio.file.Path;
 import java.time.format.DateTimeFormatter;
 
 public class Main {
@@ -14,17 +15,61 @@ public class Main {
 
     public static void main(String[] args) {
         ArcNet.errorHandler = Log::err;
-        Log.logger = (level, text) -> { // this is how fashionable i am
-            String result = Log.format("&lk&fb[" + dateTime.format(LocalDateTime.now()) + "]&fr " + tags[level.ordinal()] + " " + text + "&fr");
-            System.out.println(result);
-        };
-
-        var distributor = new Distributor();
-        new Control(distributor);
+        String logFile = System.getProperty("claj.log.file");
+        Log.logger = new AsyncLog( // this is how fashionable i am
+                Integer.getInteger("claj.log.capacity", 65536),
+                logFile == null ? null : Path.of(logFile),
+                Long.getLong("claj.log.maxSize", 16L << 20),
+                Integer.getInteger("claj.log.files", 5));
 
         try {
             if (args.length == 0) throw new RuntimeException("Need a port as an argument!");
-            distributor.run(Integer.parseInt(args[0]));
+            BufferPool.maxIdleBytes = Integer.getInteger("claj.pool.idle", 16 << 20);
+            Distributor.trustLoopback = Boolean.getBoolean("claj.admission.loopback");
+            int port = Integer.parseInt(args[0]);
+            boolean nio = !System.getProperty("claj.engine", "nio").equals("arc");
+            // one shard per core, the arcnet engine cannot spread the connections of its port and runs a single one
+            int count = args.length > 1 ? Integer.parseInt(args[1]) : nio ? Runtime.getRuntime().availableProcessors() : 1;
+
+            var shards = new Shards(count, Integer.getInteger("claj.buffer.write", 32768), Integer.getInteger("claj.buffer.object", 8192), nio);
+            new Control(shards);
+
+            int metricsPort = Integer.getInteger("claj.metrics.port", 0);
+            if (metricsPort != 0) Metrics.serve(metricsPort, shards);
+
+            // nodes are given as host:port, in the same order on every node
+            String nodes = System.getProperty("claj.cluster.nodes");
+            int local = Integer.getInteger("claj.cluster.local", 0);
+            if (nodes != null) {
+                var list = nodes.split(",");
+                var cluster = new Directory.Node[list.length];
+                for (int i = 0; i < list.length; i++) cluster[i] = Directory.Node.parse(i, list[i].trim());
+
+                shards.join(new Directory.Encoded(cluster), cluster[Integer.getInteger("claj.cluster.id", 0)]);
+            } else if (local > 1) {
+                // the whole cluster runs in this process, each node on the port after the previous one
+                var cluster = new Directory.Node[local];
+                for (int i = 0; i < local; i++) cluster[i] = new Directory.Node(i, "127.0.0.1", port + i);
+
+                var directory = new Directory.Local(cluster);
+                shards.join(directory, cluster[0]);
+
+                for (int i = 1; i < local; i++) {
+                    var node = new Shards(count, Integer.getInteger("claj.buffer.write", 32768), Integer.getInteger("claj.buffer.object", 8192), nio);
+                    var self = cluster[i];
+                    node.join(directory, self);
+
+                    Threads.daemon("Cluster Node " + i, () -> {
+                        try {
+                            node.run(self.port());
+                        } catch (Throwable error) {
+                            Log.err("Node " + self.id() + " stopped", error);
+                        }
+                    });
+                }
+            }
+
+            shards.run(port);
         } catch (Throwable error) {
             Log.err("Could not to load redirect system", error);
         }
@@ -0,0 +1,192 @@
+package com.xpdustry.claj.server;
+
+import arc.util.Log;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of the relay, shared by all shards.
+ * Recording never allocates, the text format of Prometheus is only built when scraped.
+ */
+public class Metrics {
+
+    public static final LongAdder
+            connections = new LongAdder(),
+            disconnections = new LongAdder(),
+            blacklisted = new LongAdder(),
+            rejected = new LongAdder(),
+            spamKicks = new LongAdder(),
+            slowConsumers = new LongAdder(),
+            dropped = new LongAdder(),
+            parked = new LongAdder(),
+            scheduled = new LongAdder(),
+            proxied = new LongAdder(),
+            roomsCreated = new LongAdder(),
+            roomsClosed = new LongAdder(),
+            reapedFree = new LongAdder(),
+            reapedPairs = new LongAdder(),
+            reapedRooms = new LongAdder(),
+            packetsToClient = new LongAdder(),
+            packetsToHost = new LongAdder(),
+            bytesToClient = new LongAdder(),
+            bytesToHost = new LongAdder();
+
+    /** One forwarded frame in this many is recorded in the histograms below, so that the others are not timed. */
+    public static final int sampling = 64;
+
+    /** Time spent writing a frame into the buffer of the receiver, in nanoseconds. */
+    public static final Histogram forwardNanos = new Histogram(250, 500, 1000, 2500, 5000, 10000, 50000, 250000, 1000000);
+    /** Bytes waiting in the TCP write buffer of the receiver right after a frame is forwarded. */
+    public static final Histogram writeBuffer = new Histogram(0, 1024, 4096, 8192, 16384, 24576, 32768);
+
+    private static HttpServer server;
+
+    /** Serves the metrics at {@code /metrics} on the loopback address only. */
+    public static void serve(int port, Shards shards) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape(shards).getBytes(StandardCharsets.UTF_8);
+
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (var output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        });
+        server.start();
+
+        Log.info("Metrics served on port @.", port);
+    }
+
+    public static void stop() {
+        if (server != null) server.stop(0);
+    }
+
+    /** Builds the Prometheus text exposition of all metrics. */
+    public static String scrape(Shards shards) {
+        var builder = new StringBuilder(4096);
+
+        counter(builder, "claj_connections_total", "Accepted connections.", connections.sum());
+        counter(builder, "claj_disconnections_total", "Lost connections.", disconnections.sum());
+        counter(builder, "claj_blacklisted_total", "Connections rejected by the blacklist.", blacklisted.sum());
+        counter(builder, "claj_rejected_total", "Connections rejected by admission control or for not sending a link in time.", rejected.sum());
+        counter(builder, "claj_spam_kicks_total", "Connections closed for exceeding a rate limit.", spamKicks.sum());
+        counter(builder, "claj_slow_consumers_total", "Receivers disconnected for not keeping up.", slowConsumers.sum());
+        counter(builder, "claj_dropped_total", "Unreliable frames dropped because the receiver was congested.", dropped.sum());
+        counter(builder, "claj_parked_total", "Frames parked because the receiver was congested.", parked.sum());
+        counter(builder, "claj_proxied_total", "Connections relayed to the node owning their room.", proxied.sum());
+        counter(builder, "claj_scheduled_total", "Stream chunks queued behind other packets.", scheduled.sum());
+        counter(builder, "claj_rooms_created_total", "Created rooms.", roomsCreated.sum());
+        counter(builder, "claj_rooms_closed_total", "Closed rooms.", roomsClosed.sum());
+
+        builder.append("# HELP claj_reaped_total Redirectors and rooms closed for being idle.\n# TYPE claj_reaped_total counter\n");
+        builder.append("claj_reaped_total{state=\"free\"} ").append(reapedFree.sum()).append('\n');
+        builder.append("claj_reaped_total{state=\"pair\"} ").append(reapedPairs.sum()).append('\n');
+        builder.append("claj_reaped_total{state=\"room\"} ").append(reapedRooms.sum()).append('\n');
+        builder.append("# HELP claj_packets_total Relayed packets.\n# TYPE claj_packets_total counter\n");
+        builder.append("claj_packets_total{direction=\"to_client\"} ").append(packetsToClient.sum()).append('\n');
+        builder.append("claj_packets_total{direction=\"to_host\"} ").append(packetsToHost.sum()).append('\n');
+        builder.append("# HELP claj_bytes_total Relayed bytes.\n# TYPE claj_bytes_total counter\n");
+        builder.append("claj_bytes_total{direction=\"to_client\"} ").append(bytesToClient.sum()).append('\n');
+        builder.append("claj_bytes_total{direction=\"to_host\"} ").append(bytesToHost.sum()).append('\n');
+
+        forwardNanos.write(builder, "claj_forward_nanoseconds", "Time spent forwarding a frame, sampled.");
+        writeBuffer.write(builder, "claj_write_buffer_bytes", "Occupancy of the TCP write buffer of receivers, sampled.");
+
+        builder.append("# HELP claj_buffer_pool_bytes Direct memory of the buffer pool.\n# TYPE claj_buffer_pool_bytes gauge\n");
+        builder.append("claj_buffer_pool_bytes{state=\"used\"} ").append(BufferPool.used()).append('\n');
+        builder.append("claj_buffer_pool_bytes{state=\"idle\"} ").append(BufferPool.idle()).append('\n');
+        builder.append("# HELP claj_buffer_pool_buffers Pooled buffers per size class.\n# TYPE claj_buffer_pool_buffers gauge\n");
+        for (int shift = BufferPool.minShift; shift <= BufferPool.maxShift; shift++) {
+            builder.append("claj_buffer_pool_buffers{size=\"").append(1 << shift).append("\",state=\"allocated\"} ").append(BufferPool.allocated(shift)).append('\n');
+            builder.append("claj_buffer_pool_buffers{size=\"").append(1 << shift).append("\",state=\"idle\"} ").append(BufferPool.idle(shift)).append('\n');
+        }
+
+        builder.append("# HELP claj_rooms Open rooms per shard.\n# TYPE claj_rooms gauge\n");
+        for (var distributor : shards.distributors)
+            builder.append("claj_rooms{shard=\"").append(distributor.shard).append("\"} ").append(distributor.rooms.size).append('\n');
+
+        builder.append("# HELP claj_redirector_connections Connections bound to a redirector per shard.\n# TYPE claj_redirector_connections gauge\n");
+        for (var distributor : shards.distributors)
+            builder.append("claj_redirector_connections{shard=\"").append(distributor.shard).append("\"} ").append(distributor.redirectors.size).append('\n');
+
+        // rooms are labeled by shard and host connection, links must stay secret
+        builder.append("# HELP claj_room_bytes_total Relayed bytes per room.\n# TYPE claj_room_bytes_total counter\n");
+        for (var room : shards.links.values())
+            builder.append("claj_room_bytes_total{room=\"").append(room.owner.shard).append('-').append(room.host.getID())
+                   .append("\"} ").append(room.bytes.sum()).append('\n');
+
+        return builder.toString();
+    }
+
+    private static void counter(StringBuilder builder, String name, String help, long value) {
+        builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(name).append(" counter\n");
+        builder.append(name).append(' ').append(value).append('\n');
+    }
+
+    /** Histogram with fixed upper bounds, the last bucket counts everything above them. Buckets are adders so that shards do not contend. */
+    public static class Histogram {
+
+        public final long[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder sum = new LongAdder();
+
+        public Histogram(long... bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        public void record(long value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) i++;
+
+            buckets[i].increment();
+            sum.add(value);
+        }
+
+        public long count() {
+            long count = 0;
+            for (var bucket : buckets) count += bucket.sum();
+            return count;
+        }
+
+        public long sum() {
+            return sum.sum();
+        }
+
+        /** Returns the upper bound of the bucket containing the given quantile, or -1 past the last bound. */
+        public long quantile(double quantile) {
+            long target = (long) Math.ceil(count() * quantile), seen = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= target) return bounds[i];
+            }
+
+            return -1;
+        }
+
+        void write(StringBuilder builder, String name, String help) {
+            builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            builder.append("# TYPE ").append(name).append(" histogram\n");
+
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += buckets[i].sum();
+                builder.append(name).append("_bucket{le=\"").append(bounds[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += buckets[bounds.length].sum();
+
+            builder.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            builder.append(name).append("_sum ").append(sum.sum()).append('\n');
+            builder.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+}
@@ -0,0 +1,808 @@
+package com.xpdustry.claj.server;
+
+import arc.net.Connection;
+import arc.net.DcReason;
+import arc.net.FrameworkMessage;
+import arc.net.FrameworkMessage.*;
+import arc.net.NetListener;
+import arc.struct.Seq;
+import arc.util.Log;
+import arc.util.Time;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transport built for relaying, used by default instead of the one of arcnet, which stays selectable with {@code -Dclaj.engine=arc}.
+ * It speaks the same protocol: frames prefixed with their length, the registration of TCP then UDP, keep alives and pings.
+ * Frames are decoded by the {@link Serializer} of the distributor, which only decodes link and framework messages,
+ * and are handed to the same {@link NetListener} on the event loop of the shard, so rooms and redirectors run unchanged.
+ * Buffers are direct, so the socket reads and writes do not go through a temporary copy, and taken from the {@link BufferPool}.
+ * They start small and grow up to the sizes of the distributor when a frame needs it, then shrink back once empty.
+ * <p>
+ * Only the engine of the first shard binds the port, it spreads accepted connections over the engines of all shards
+ * and hands each datagram to the shard of its connection, since a link only names one address.
+ * The port is bound with {@code SO_REUSEPORT} where supported, so that a new version can take it over during a drain.
+ * Once a connection names a room owned by another shard, it is handed over to that shard, so that a room, its host,
+ * its redirectors and its clients all live on one loop and frames are forwarded without crossing threads.
+ * Connections to other nodes of a cluster are opened on the loop of the shard as well, shards running arcnet keep
+ * an engine bound to nothing for them.
+ */
+public class NioEngine {
+
+    /** Same delays as arcnet, clients expect a keep alive before their own timeout. */
+    public static final int keepAlive = 8000, timeout = 12000;
+    /** Time in milliseconds a client has to register its UDP address, keep alives do not extend it. */
+    public static final int register = 5000;
+    /** Sizes the buffers of a connection start with, most connections never need more. */
+    public static final int initialWrite = 4096, initialRead = 1024;
+
+    public final Distributor distributor;
+    private final Distributor.Listener listener;
+    private final Serializer serializer;
+
+    private Selector selector;
+    private ServerSocketChannel server;
+    private DatagramChannel udp;
+    private int port;
+    private final ByteBuffer udpRead, udpWrite;
+
+    /** Engine owning the sockets bound to the port, and the engines it spreads connections over. */
+    private NioEngine acceptor = this;
+    private NioEngine[] group = { this };
+    private int next;
+
+    private final Seq<NioConnection> connections = new Seq<>(false, 64), sweep = new Seq<>(false, 64);
+    /** Buffers of connections closed during the last iteration, frames being handled may still be views of them. */
+    private final Seq<BufferPool.Pooled> retired = new Seq<>(false, 16);
+    /** Connections of the whole group whose client did not register its UDP address yet, their frames are dropped. */
+    private final ConcurrentHashMap<Integer, NioConnection> pending = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<SocketAddress, NioConnection> addresses = new ConcurrentHashMap<>();
+    private int nextId = 1;
+    private long nextSweep;
+    private Thread thread;
+
+    public NioEngine(Distributor distributor, Distributor.Listener listener) {
+        this.distributor = distributor;
+        this.listener = listener;
+        this.serializer = distributor.serializer;
+        this.udpRead = ByteBuffer.allocateDirect(distributor.objectBufferSize);
+        this.udpWrite = ByteBuffer.allocateDirect(distributor.objectBufferSize);
+    }
+
+    /** Makes the first engine accept connections for all of them, their shards must not be running yet. */
+    public static void group(NioEngine... engines) {
+        for (var engine : engines) {
+            engine.acceptor = engines[0];
+            engine.group = engines;
+        }
+    }
+
+    /** Opens the selector on the current thread, which must be the one of the shard. */
+    public void open() throws IOException {
+        selector = Selector.open();
+        thread = Thread.currentThread();
+    }
+
+    /** Binds the port if this engine is the acceptor of its group, the others only wait for the connections handed to them. */
+    public void bind(int port) throws IOException {
+        open();
+        if (acceptor != this) return;
+
+        this.port = port;
+        listen();
+
+        udp = DatagramChannel.open();
+        reusePort(udp);
+        udp.bind(new InetSocketAddress(port));
+        udp.configureBlocking(false);
+        udp.register(selector, SelectionKey.OP_READ);
+    }
+
+    private void listen() throws IOException {
+        var channel = ServerSocketChannel.open();
+        try {
+            reusePort(channel);
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException error) {
+            channel.close();
+            throw error;
+        }
+        server = channel;
+    }
+
+    /** Lets another process bind the same port meanwhile, the system then spreads new connections and datagrams over both. */
+    private static void reusePort(NetworkChannel channel) throws IOException {
+        if (channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+    }
+
+    /**
+     * Closes the socket accepting connections, so that they all go to another process bound to the port, or opens it again.
+     * Connections already accepted and the datagram socket are kept. Does nothing unless this engine is the acceptor. Runs on the shard.
+     */
+    public void accepting(boolean accepting) {
+        if (acceptor != this || selector == null || accepting == (server != null)) return;
+
+        try {
+            if (accepting) listen();
+            else {
+                accept(); // the connections waiting in the backlog would be reset otherwise
+                server.close();
+                server = null;
+            }
+        } catch (IOException error) {
+            Log.err("Could not " + (accepting ? "open" : "close") + " the port", error);
+        }
+    }
+
+    /** Waits up to the given time for sockets to be ready, not at all if zero, then accepts, reads and writes what it can. Runs on the shard. */
+    public void update(int timeout) throws IOException {
+        if (!retired.isEmpty()) {
+            for (var pooled : retired) pooled.release();
+            retired.clear();
+        }
+
+        if (timeout > 0) selector.select(timeout);
+        else selector.selectNow();
+
+        var keys = selector.selectedKeys();
+        for (var key : keys) {
+            if (!key.isValid()) continue;
+
+            if (key.channel() == server) accept();
+            else if (key.channel() == udp) receive();
+            else {
+                var connection = (NioConnection) key.attachment();
+                if (key.channel() == connection.datagrams) {
+                    connection.receive();
+                    continue;
+                }
+
+                if (key.isConnectable()) connection.finish();
+                if (key.isValid() && key.isWritable()) connection.writable();
+                if (key.isValid() && key.isReadable()) connection.read();
+            }
+        }
+        keys.clear();
+
+        long now = Time.millis();
+        if (now >= nextSweep) {
+            nextSweep = now + 1000;
+
+            // closing a connection may close others through the listener, so a copy is iterated
+            sweep.clear();
+            sweep.addAll(connections);
+            for (var connection : sweep) {
+                // a paused connection is not read, the congestion grace of its receiver bounds how long it lasts
+                if ((now - connection.lastRead > NioEngine.timeout && !connection.paused) || (!connection.registered && now - connection.opened > register)) {
+                    connection.close(DcReason.timeout);
+                    continue;
+                }
+
+                // datagrams may be lost, so registrations to other nodes are sent again until answered
+                if (!connection.registered && connection.id != 0 && connection.datagrams != null) connection.registerUDP();
+                if (connection.channel.isConnected() && now - connection.lastWrite > keepAlive) connection.sendTCP(FrameworkMessage.keepAlive);
+                connection.trim();
+            }
+        }
+    }
+
+    /** Wakes the shard up so that it notices it was stopped or runs the tasks posted to it. */
+    public void wakeup() {
+        if (selector != null) selector.wakeup();
+    }
+
+    /** Closes every connection and socket, the shard calls it once its loop is over. */
+    public void close() {
+        if (selector == null) return;
+
+        for (var connection : connections.copy()) connection.close(DcReason.closed);
+        for (var pooled : retired) pooled.release();
+        retired.clear();
+        try {
+            if (server != null) server.close();
+            if (udp != null) udp.close();
+            selector.close();
+        } catch (IOException error) {
+            Log.err("Could not close the engine", error);
+        }
+    }
+
+    public NioConnection[] connections() {
+        return connections.toArray(NioConnection.class);
+    }
+
+    public int size() {
+        return connections.size;
+    }
+
+    /**
+     * Opens a connection to another node on the loop of this shard. It gets a datagram socket of its own, as the node sends
+     * the datagrams of all its connections from the same port. The listener hears of it once the node registered it. Runs on the shard.
+     */
+    public NioConnection connect(InetSocketAddress address, NetListener listener) throws IOException {
+        var channel = SocketChannel.open();
+        var datagrams = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            datagrams.configureBlocking(false);
+            datagrams.connect(address);
+
+            var connection = new NioConnection(this, 0, channel, address, listener, datagrams);
+            connection.key = channel.register(selector, channel.connect(address) ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, connection);
+            datagrams.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+            return connection;
+        } catch (IOException error) {
+            channel.close();
+            datagrams.close();
+            throw error;
+        }
+    }
+
+    /**
+     * Moves the connection to the engine of another shard, which handles the frame first and reads the connection from now on.
+     * Frames read behind it stay in the read buffer and are handled there as well. Runs on the shard.
+     */
+    public void handoff(NioConnection connection, NioEngine engine, Object frame) {
+        connections.remove(connection, true);
+        connection.key.cancel();
+        connection.target = engine;
+        connection.handed = frame;
+        // the buffer must not be touched by both shards, so a connection being read moves once the frames before are handled
+        if (!connection.reading) connection.move();
+    }
+
+    /** Registers a connection handed over by another shard on the selector of this engine. Runs on the shard. */
+    private void adopt(NioConnection connection, Object frame) {
+        if (!connection.isConnected()) return;
+
+        try {
+            synchronized (connection.lock) {
+                // writes made meanwhile could not change the interest of the cancelled key
+                connection.writing = connection.write.position() > 0;
+                connection.key = connection.channel.register(selector, connection.interest(), connection);
+            }
+        } catch (IOException error) {
+            connection.close(DcReason.error);
+            return;
+        }
+        connections.add(connection);
+        connection.listener = listener;
+
+        listener.received(connection, frame);
+        connection.frames();
+    }
+
+    /** Hands every connection waiting on the port to the next engine of the group in turn. */
+    private void accept() throws IOException {
+        for (SocketChannel accepted; (accepted = server.accept()) != null;) {
+            var channel = accepted;
+            var engine = group[next];
+            next = (next + 1) % group.length;
+
+            // ids are given by the acceptor, so that datagrams registering them can be matched across the group
+            int id = nextId++;
+            if (engine == this) adopt(channel, id);
+            else engine.distributor.execute(() -> engine.adopt(channel, id));
+        }
+    }
+
+    /** Admits the connection, then registers it on the selector of this engine and starts its handshake. Runs on the shard. */
+    private void adopt(SocketChannel channel, int id) {
+        try {
+            // rejected while nothing but the socket exists, admitted ones count against the limits even before registering
+            if (!listener.admit(((InetSocketAddress) channel.getRemoteAddress()).getAddress())) {
+                channel.close();
+                return;
+            }
+
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+            var connection = new NioConnection(this, id, channel, (InetSocketAddress) channel.getRemoteAddress(), listener, null);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+            acceptor.pending.put(id, connection);
+            listener.accepted(connection);
+
+            var register = new RegisterTCP();
+            register.connectionID = id;
+            connection.sendTCP(register);
+        } catch (IOException error) {
+            Log.debug("Could not accept a connection: @", error.getMessage());
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private void receive() throws IOException {
+        for (SocketAddress from; (from = udp.receive(udpRead.clear())) != null;) {
+            udpRead.flip();
+            if (!udpRead.hasRemaining()) continue;
+
+            Object object;
+            try {
+                object = serializer.read(udpRead);
+                serializer.udp = true;
+            } catch (RuntimeException error) {
+                continue; // garbage from anyone on the internet
+            }
+
+            var connection = addresses.get(from);
+            if (connection == null) {
+                if (object instanceof RegisterUDP register) {
+                    var address = (InetSocketAddress) from;
+                    var waiting = pending.get(register.connectionID);
+                    // the datagram must come from the host of the TCP connection, as anyone could send an id
+                    if (waiting == null || !waiting.remote.getAddress().equals(address.getAddress()) || !pending.remove(register.connectionID, waiting)) continue;
+
+                    waiting.engine.distributor.execute(() -> waiting.engine.register(waiting, address));
+                }
+                continue;
+            }
+
+            if (object instanceof KeepAlive || object instanceof RegisterUDP) {
+                connection.lastRead = Time.millis();
+                continue;
+            }
+
+            var engine = connection.engine;
+            if (engine == this) {
+                connection.received(object);
+            } else if (object instanceof ByteBuffer frame) {
+                // the frame is a view of the read buffer of this shard, so the shard of the connection gets a copy
+                var copy = BufferPool.acquire(frame.remaining());
+                copy.buffer.put(frame).flip();
+                engine.distributor.execute(() -> {
+                    // dropped if the connection moved to yet another shard meanwhile, as it is only read there
+                    if (connection.engine == engine) {
+                        engine.serializer.udp = true;
+                        connection.received(copy.buffer);
+                    }
+                    copy.release();
+                });
+            } else {
+                engine.distributor.execute(() -> {
+                    if (connection.engine != engine) return;
+                    engine.serializer.udp = true;
+                    connection.received(object);
+                });
+            }
+        }
+    }
+
+    /** Completes the handshake of a connection once its client sent its UDP address, its frames are handed to the listener from now on. Runs on the shard. */
+    private void register(NioConnection connection, InetSocketAddress address) {
+        if (!connection.isConnected()) return;
+
+        connection.udpRemote = address;
+        acceptor.addresses.put(address, connection);
+
+        var register = new RegisterUDP();
+        register.connectionID = connection.id;
+        connection.sendTCP(register);
+
+        connection.registered = true;
+    }
+
+    /** Sends a datagram through the socket, to the address unless the socket is connected. */
+    private int sendUDP(Object object, DatagramChannel channel, InetSocketAddress address) {
+        synchronized (udpWrite) {
+            try {
+                serializer.write(udpWrite.clear(), object);
+                udpWrite.flip();
+                return address == null ? channel.write(udpWrite) : channel.send(udpWrite, address);
+            } catch (IOException | BufferOverflowException error) {
+                Log.debug("Could not send a datagram to @: @", address, error.getMessage());
+                return 0;
+            }
+        }
+    }
+
+    /** Forgets the connection on the shard and tells the listener. */
+    private void closed(NioConnection connection, DcReason reason) {
+        distributor.execute(() -> {
+            connections.remove(connection, true);
+            acceptor.pending.remove(connection.id, connection);
+            if (connection.udpRemote != null) acceptor.addresses.remove(connection.udpRemote, connection);
+
+            connection.listener.disconnected(connection, reason);
+            retired.add(connection.readBuffer);
+            synchronized (connection.lock) {
+                retired.add(connection.writeBuffer);
+            }
+        });
+    }
+
+    /** Buffer over the pooled one, whose capacity is the size asked for rounded up, that never goes past the given size. */
+    private static ByteBuffer slice(BufferPool.Pooled pooled, int max) {
+        return pooled.buffer.limit(Math.min(pooled.buffer.capacity(), max)).slice();
+    }
+
+    /** Connection of the engine, it overrides everything the relay uses so that nothing of arcnet is involved. */
+    public static class NioConnection extends Connection {
+
+        /** Engine of the shard reading the connection, it changes when the connection is handed over. */
+        volatile NioEngine engine;
+        /** Given by the acceptor, or by the other node for connections opened to it. */
+        int id;
+        final SocketChannel channel;
+        final InetSocketAddress remote;
+        volatile InetSocketAddress udpRemote;
+        SelectionKey key;
+        /** Engine the connection is being handed to and the frame it handles first, null unless it is moving. */
+        private NioEngine target;
+        private Object handed;
+        /** Whether the frames of the read buffer are being handled. */
+        private boolean reading;
+        /** Listener of the connection, the one of its shard unless it was opened to another node. */
+        NetListener listener;
+        /** Datagram socket of a connection opened to another node, null for accepted ones. */
+        final DatagramChannel datagrams;
+
+        /** Buffers of the connection, replaced by larger or smaller ones as needed. The write buffer is guarded by the lock. */
+        private BufferPool.Pooled readBuffer, writeBuffer;
+        private ByteBuffer read;
+        ByteBuffer write;
+        final Object lock = new Object();
+        /** Whether the socket did not take everything, the selector then tells when it can take more. */
+        boolean writing;
+        /** Whether reading the socket is paused because receivers of the connection are congested, and how many are. */
+        volatile boolean paused;
+        private int pauses;
+        private volatile boolean closed;
+        boolean registered;
+        final long opened = Time.millis();
+        /** Times of the last frame read from any transport and of the last frame written over TCP. */
+        volatile long lastRead = opened, lastWrite = opened;
+
+        NioConnection(NioEngine engine, int id, SocketChannel channel, InetSocketAddress remote, NetListener listener, DatagramChannel datagrams) {
+            this.engine = engine;
+            this.id = id;
+            this.channel = channel;
+            this.remote = remote;
+            this.listener = listener;
+            this.datagrams = datagrams;
+            if (datagrams != null) udpRemote = remote;
+            this.readBuffer = BufferPool.acquire(Math.min(initialRead, engine.distributor.objectBufferSize));
+            this.writeBuffer = BufferPool.acquire(Math.min(initialWrite, engine.distributor.writeBufferSize));
+            this.read = slice(readBuffer, engine.distributor.objectBufferSize);
+            this.write = slice(writeBuffer, engine.distributor.writeBufferSize);
+        }
+
+        @Override
+        public int getID() {
+            return id;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return !closed;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddressTCP() {
+            return remote;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddressUDP() {
+            return udpRemote;
+        }
+
+        @Override
+        public int getTcpWriteBufferSize() {
+            synchronized (lock) {
+                return write.position();
+            }
+        }
+
+        /** Appends the frame to the write buffer and writes as much as the socket takes right away, from any thread. */
+        @Override
+        public int sendTCP(Object object) {
+            int length = 0;
+            boolean failed;
+
+            synchronized (lock) {
+                if (closed) return 0;
+
+                int start = write.position();
+                while (true) {
+                    try {
+                        write.position(start + 2);
+                        engine.serializer.write(write, object);
+
+                        length = write.position() - start - 2;
+                        write.putShort(start, (short) length);
+                        lastWrite = Time.millis();
+                        failed = !flush();
+                        break;
+                    } catch (BufferOverflowException | IllegalArgumentException error) {
+                        write.position(start);
+                        if (grow()) continue;
+
+                        Log.debug("Write buffer of connection @ overflowed.", id);
+                        failed = true;
+                        break;
+                    }
+                }
+            }
+
+            // closed out of the lock, as the listener may close other connections
+            if (failed) {
+                close(DcReason.error);
+                return 0;
+            }
+            return length + 2;
+        }
+
+        @Override
+        public int sendUDP(Object object) {
+            var address = udpRemote;
+            if (address == null || closed) return 0;
+
+            // lastWrite is left alone, clients time out on TCP alone and still need keep alives there
+            return datagrams != null ? engine.sendUDP(object, datagrams, null) : engine.sendUDP(object, engine.acceptor.udp, address);
+        }
+
+        @Override
+        public void close(DcReason reason) {
+            synchronized (lock) {
+                if (closed) return;
+                closed = true;
+            }
+
+            try {
+                channel.close(); // also cancels the key
+                if (datagrams != null) datagrams.close();
+            } catch (IOException ignored) {}
+            engine.closed(this, reason);
+        }
+
+        @Override
+        public String toString() {
+            return "Connection " + id;
+        }
+
+        void received(Object object) {
+            lastRead = Time.millis();
+
+            if (object instanceof Ping ping) {
+                if (ping.isReply) return;
+                ping.isReply = true;
+                sendTCP(ping);
+                return;
+            }
+
+            listener.received(this, object);
+        }
+
+        /** Reads what the socket has and hands every complete frame to the listener, its view is valid until the next read. */
+        void read() {
+            try {
+                if (channel.read(read) == -1) {
+                    close(DcReason.closed);
+                    return;
+                }
+            } catch (IOException error) {
+                close(DcReason.error);
+                return;
+            }
+            frames();
+        }
+
+        /** Hands every complete frame of the read buffer to the listener, until the connection is handed to another shard. */
+        void frames() {
+            reading = true;
+            try {
+                handle();
+            } finally {
+                reading = false;
+            }
+            if (target != null && !closed) move();
+        }
+
+        private void handle() {
+            read.flip();
+            while (read.remaining() >= 2 && !closed && target == null) {
+                int length = read.getShort(read.position()) & 0xffff;
+                if (length + 2 > read.capacity()) {
+                    if (length + 2 > engine.distributor.objectBufferSize) {
+                        close(DcReason.error); // arcnet refuses frames larger than its object buffer as well
+                        return;
+                    }
+                    resize(length + 2);
+                }
+                if (read.remaining() < length + 2) break;
+
+                read.position(read.position() + 2);
+                int end = read.position() + length, limit = read.limit();
+                read.limit(end);
+
+                Object object;
+                try {
+                    object = engine.serializer.read(read);
+                    engine.serializer.udp = false;
+                } catch (RuntimeException error) {
+                    close(DcReason.error);
+                    return;
+                }
+
+                read.limit(limit).position(end);
+                if (object instanceof KeepAlive) lastRead = Time.millis();
+                else if (registered) received(object);
+                else if (datagrams != null) handshake(object);
+            }
+            read.compact();
+        }
+
+        /** Moves what is left to read to a buffer of at least the given size, the old one is released after the current iteration. */
+        private void resize(int size) {
+            var next = BufferPool.acquire(size);
+            var buffer = slice(next, Math.max(size, engine.distributor.objectBufferSize));
+            buffer.put(read).flip();
+
+            engine.retired.add(readBuffer);
+            readBuffer = next;
+            read = buffer;
+        }
+
+        /** Moves what is left to write to a buffer twice as large, up to the write buffer size. Returns false if it is that large already. Holding the lock. */
+        private boolean grow() {
+            int size = Math.min(write.capacity() * 2, engine.distributor.writeBufferSize);
+            if (size <= write.capacity()) return false;
+
+            var next = BufferPool.acquire(size);
+            var buffer = slice(next, size);
+            buffer.put(write.flip());
+
+            // nothing outside the lock refers to the write buffer, so it can go back to the pool right away
+            writeBuffer.release();
+            writeBuffer = next;
+            write = buffer;
+            return true;
+        }
+
+        /** Gives back buffers that grew and are empty again. Runs on the shard, out of any read. */
+        void trim() {
+            if (closed) return; // its buffers are retired already
+
+            if (read.position() == 0 && read.capacity() > initialRead) {
+                engine.retired.add(readBuffer);
+                readBuffer = BufferPool.acquire(initialRead);
+                read = slice(readBuffer, engine.distributor.objectBufferSize);
+            }
+
+            synchronized (lock) {
+                if (write.position() != 0 || write.capacity() <= initialWrite) return;
+
+                writeBuffer.release();
+                writeBuffer = BufferPool.acquire(initialWrite);
+                write = slice(writeBuffer, engine.distributor.writeBufferSize);
+            }
+        }
+
+        /** Stops or resumes reading the socket for one congested receiver, frames already read are still handled. Runs on the shard. */
+        void pause(boolean paused) {
+            synchronized (lock) {
+                pauses += paused ? 1 : -1;
+                if (this.paused == pauses > 0) return;
+
+                this.paused = pauses > 0;
+                if (!closed && key.isValid()) key.interestOps(interest());
+            }
+        }
+
+        /** Operations the selector watches, holding the lock. */
+        int interest() {
+            return (paused ? 0 : SelectionKey.OP_READ) | (writing ? SelectionKey.OP_WRITE : 0);
+        }
+
+        /** Posts the connection to the engine it is handed to, the frames left in its buffer go with it. */
+        private void move() {
+            var engine = target;
+            var frame = handed;
+            target = null;
+            handed = null;
+
+            // datagrams and closes go to the new shard from now on, after the connection itself
+            this.engine = engine;
+            engine.distributor.execute(() -> engine.adopt(this, frame));
+        }
+
+        /** Registers a connection opened to another node the way arcnet clients do, the node answers both over TCP. */
+        private void handshake(Object object) {
+            if (object instanceof RegisterTCP register) {
+                id = register.connectionID;
+                registerUDP();
+            } else if (object instanceof RegisterUDP) {
+                registered = true;
+                listener.connected(this);
+            }
+        }
+
+        void registerUDP() {
+            var register = new RegisterUDP();
+            register.connectionID = id;
+            sendUDP(register);
+        }
+
+        /** The connection to another node is established, the node starts the registration. */
+        void finish() {
+            try {
+                if (channel.finishConnect()) key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException error) {
+                close(DcReason.error);
+            }
+        }
+
+        /** Reads the datagrams the other node sent to a connection opened to it. */
+        void receive() {
+            var buffer = engine.udpRead;
+            while (!closed) {
+                try {
+                    if (datagrams.read(buffer.clear()) <= 0) return;
+                } catch (IOException error) {
+                    return; // the node is not listening for datagrams yet, TCP tells if it is gone
+                }
+
+                buffer.flip();
+                Object object;
+                try {
+                    object = engine.serializer.read(buffer);
+                    engine.serializer.udp = true;
+                } catch (RuntimeException error) {
+                    continue;
+                }
+
+                if (object instanceof KeepAlive || object instanceof RegisterUDP) lastRead = Time.millis();
+                else if (registered) received(object);
+            }
+        }
+
+        /** The socket can take more, the selector only asks while something is left to write. */
+        void writable() {
+            boolean failed;
+            synchronized (lock) {
+                failed = !flush();
+            }
+            if (failed) close(DcReason.error);
+        }
+
+        /** Writes the buffer to the socket, holding the lock. Returns false if the connection failed. */
+        private boolean flush() {
+            write.flip();
+            try {
+                channel.write(write);
+            } catch (IOException error) {
+                write.clear();
+                return false;
+            }
+            write.compact();
+
+            boolean left = write.position() > 0;
+            if (left != writing && key.isValid()) {
+                writing = left;
+                key.interestOps(interest());
+                if (Thread.currentThread() != engine.thread) key.selector().wakeup();
+            }
+            return true;
+        }
+    }
+}
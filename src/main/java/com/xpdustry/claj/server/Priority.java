@@ -0,0 +1,23 @@
+package com.xpdustry.claj.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Classifies relayed frames by the id of the Mindustry packet they hold, the first byte of the frame.
+ * Chunks of the world stream are bulk, everything else, such as chat, pings and state snapshots, is control.
+ */
+public final class Priority {
+
+    /** StreamBegin, StreamChunk and WorldStream are the first packets Mindustry registers, on v7 as on v8. */
+    public static final byte streamBegin = 0, streamChunk = 1, worldStream = 2;
+
+    private Priority() {}
+
+    /** Whether the frame belongs to a stream and can wait behind control packets. */
+    public static boolean bulk(ByteBuffer frame) {
+        if (!frame.hasRemaining()) return false;
+
+        byte id = frame.get(frame.position());
+        return id >= streamBegin && id <= worldStream;
+    }
+}
@@ -0,0 +1,110 @@
+package com.xpdustry.claj.server;
+
+import arc.net.Connection;
+import arc.net.DcReason;
+import arc.net.FrameworkMessage;
+import arc.net.NetListener;
+import arc.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.UnresolvedAddressException;
+
+/**
+ * Relays a host or a client asking for a room owned by another node of the cluster, through a connection to that node.
+ * Mindustry clients cannot follow a redirect, so their frames go through this node instead.
+ * The connection to the node is opened on the loop of the shard, see {@link NioEngine#connect}, so everything runs there.
+ */
+public class Proxy implements NetListener {
+
+    public final Connection local;
+    public final Distributor shard;
+    /** Whether the local connection hosts a redirector, it gets the rate limit of hosts. */
+    public final boolean host;
+
+    private NioEngine.NioConnection remote;
+    /** Whether the node registered the connection, frames are kept until then. */
+    private boolean attached, closed;
+    /** Message of the local connection, sent to the node first. */
+    private String message;
+    /** Frames of the local connection until the node is connected, each prefixed with its length. */
+    private BufferPool.Pooled backlog;
+
+    public Proxy(Connection local, Distributor shard, boolean host) {
+        this.local = local;
+        this.shard = shard;
+        this.host = host;
+        this.backlog = BufferPool.acquire(shard.backlogSize);
+    }
+
+    /** Connects to the node and sends it the message of the local connection, then what the connection sent in the meantime. */
+    public void connect(Directory.Node node, String message) {
+        this.message = message;
+        try {
+            remote = shard.outbound().connect(new InetSocketAddress(node.address(), node.port()), this);
+        } catch (IOException | UnresolvedAddressException error) {
+            Log.warn("Could not reach node @ at @:@: @", node.id(), node.address(), node.port(), error.getMessage());
+            local.close(DcReason.error);
+        }
+    }
+
+    @Override
+    public void connected(Connection connection) {
+        if (closed) return;
+
+        attached = true;
+        remote.sendTCP(message);
+
+        var backlog = this.backlog.buffer.flip();
+        while (backlog.remaining() >= 2) {
+            int end = (backlog.getShort() & 0xffff) + backlog.position();
+            remote.sendTCP(backlog.duplicate().limit(end));
+            backlog.position(end);
+        }
+
+        this.backlog.release();
+        this.backlog = null;
+    }
+
+    /** Sends a frame of the local connection to the node, keeping the reliable ones until it is connected. Runs on the shard. */
+    public void forward(ByteBuffer frame, boolean udp) {
+        if (attached) {
+            if (udp) remote.sendUDP(frame);
+            else remote.sendTCP(frame);
+            return;
+        }
+
+        if (backlog == null || udp) return;
+        if (backlog.buffer.remaining() < frame.remaining() + 2) {
+            local.close(DcReason.error); // sends too much before the node could even answer
+            return;
+        }
+        backlog.buffer.putShort((short) frame.remaining()).put(frame);
+    }
+
+    /** Called by the shard once the local connection is disconnected. */
+    public void close() {
+        closed = true;
+
+        if (backlog != null) backlog.release();
+        backlog = null;
+
+        if (remote != null) remote.close(DcReason.closed);
+    }
+
+    @Override
+    public void received(Connection connection, Object object) {
+        if (object instanceof FrameworkMessage) return;
+
+        if (object instanceof ByteBuffer frame && shard.serializer.udp && local.getRemoteAddressUDP() != null)
+            local.sendUDP(frame);
+        else
+            local.sendTCP(object); // room messages are relayed as well
+    }
+
+    @Override
+    public void disconnected(Connection connection, DcReason reason) {
+        local.close(DcReason.closed);
+    }
+}
@@ -2,30 +2,413 @@ package com.xpdustry.claj.server;
 
 import arc.net.Connection;
 import arc.net.DcReason;
-import arc.net.NetListener;
+import arc.util.Log;
+import arc.util.Time;
+
+import java.nio.ByteBuffer;
 
 /**
  * Contains a host and a client, redirects packets from one to the other.
  * 
  * @author xzxADIxzx
  */
-public class Redirector implements NetListener {
+public class Redirector {
+
+    /** The host is null while a client waits for the host to connect a redirector for it. */
+    public volatile Connection host, client;
+    /** Shards whose event loops own the connections, the one of the room once both were handed to it. */
+    public volatile Distributor hostShard, clientShard;
+    /** Room the redirector belongs to, or null if it was removed from it. */
+    public volatile Room room;
+    public volatile boolean closed;
+
+    /** Frames of a waiting client, each prefixed with its length, null once the host is attached. */
+    BufferPool.Pooled backlog;
+    /** Time after which a waiting client is dropped. */
+    long deadline;
+
+    /** Whether the ConnectPacket of the client is still looked for, and how many of its frames were inspected. */
+    boolean handshake = true;
+    int handshakeFrames;
+
+    /** Time of the last frame relayed in either direction, stamped by whichever shard read it. */
+    long active;
 
-    public Connection host, client;
+    /** Congestion of each direction, only touched by the shard reading from the sending side. */
+    final Flow downstream = new Flow(), upstream = new Flow();
 
-    public Redirector(Connection host) {
+    public Redirector(Connection host, Distributor hostShard, Room room) {
         this.host = host;
+        this.hostShard = hostShard;
+        this.room = room;
+    }
+
+    /** Creates a redirector for a client that joined while the room had no free redirector. */
+    public Redirector(Room room, Connection client, Distributor clientShard, int backlog, long deadline) {
+        this.room = room;
+        this.client = client;
+        this.clientShard = clientShard;
+        this.backlog = BufferPool.acquire(backlog);
+        this.deadline = deadline;
     }
 
-    @Override
     public void disconnected(Connection connection, DcReason reason) {
-        host.close(DcReason.closed);
-        if (client != null) client.close(DcReason.closed);
+        closed = true;
+
+        var host = this.host;
+        if (host != null) hostShard.execute(() -> host.close(DcReason.closed));
+
+        var client = this.client;
+        if (client != null) clientShard.execute(() -> client.close(DcReason.closed));
+    }
+
+    /** Attaches the host to a waiting client and sends it what the client sent so far. Runs on the shard of the client. */
+    public void attach(Connection host, Distributor hostShard) {
+        if (closed) {
+            hostShard.execute(() -> host.close(DcReason.closed)); // the client left in the meantime
+            return;
+        }
+
+        this.hostShard = hostShard;
+        this.host = host;
+
+        var pooled = this.backlog;
+        var backlog = pooled.buffer.flip();
+        this.backlog = null;
+
+        while (backlog.remaining() >= 2) {
+            int end = (backlog.getShort() & 0xffff) + backlog.position();
+            host.sendTCP(backlog.duplicate().limit(end));
+            backlog.position(end);
+        }
+
+        pooled.release(); // the frames were copied into the write buffer of the host
+    }
+
+    /** Returns the buffers owned by the given shard to the pool, called by it once its side is disconnected. */
+    void release(Distributor shard) {
+        if (shard == clientShard) {
+            if (backlog != null) backlog.release();
+            backlog = null;
+            upstream.release();
+        }
+        if (shard == hostShard) downstream.release();
+    }
+
+    /**
+     * Writes a raw frame straight into the outbound buffer of the other side, this is the only copy made.
+     * Frames received over UDP are relayed over UDP if the other side has registered it, otherwise over TCP.
+     */
+    public void forward(Connection connection, ByteBuffer frame, boolean udp) {
+        // the host of a waiting client is mapped by its shard before the shard of the client attaches it, it only answers the backlog anyway
+        if (connection != client && host == null) return;
+        if (handshake && connection == client) inspect(connection, frame);
+
+        boolean toClient = connection != client;
+        var receiver = toClient ? client : host;
+        if (receiver == null) {
+            if (!toClient) hold(connection, frame, udp);
+            return;
+        }
+
+        var room = this.room;
+        var shard = toClient ? hostShard : clientShard;
+        var capture = shard.capture;
+        if (capture != null && (capture.all || room != null && room.captured)) capture.write(this, toClient, udp, frame);
+
+        int bytes = frame.remaining();
+        boolean sampled = ++shard.forwarded % Metrics.sampling == 0;
+        long start = sampled ? System.nanoTime() : 0;
+
+        if (udp && receiver.getRemoteAddressUDP() != null)
+            receiver.sendUDP(frame);
+        else if (toClient ? !send(downstream, hostShard, receiver, clientShard, frame, udp)
+                          : !send(upstream, clientShard, receiver, hostShard, frame, udp))
+            return;
+
+        if (sampled) {
+            Metrics.forwardNanos.record(System.nanoTime() - start);
+            Metrics.writeBuffer.record(receiver.getTcpWriteBufferSize());
+        }
+        (toClient ? Metrics.packetsToClient : Metrics.packetsToHost).increment();
+        (toClient ? Metrics.bytesToClient : Metrics.bytesToHost).add(bytes);
+
+        if (room != null) {
+            room.bytes.add(bytes);
+            room.active = active;
+        }
+    }
+
+    /** Manually sends an InfoMessageCallPacket to inform connecting clients that this CLaJ version is obsolete. */
+    private void inspect(Connection connection, ByteBuffer frame) {
+        int version = Handshake.version(frame);
+        if (version != Handshake.none) connection.sendTCP(Handshake.infoMessage(version));
+
+        // the handshake is over once the ConnectPacket is seen, or if the client does not send it first
+        if (version != Handshake.none || ++handshakeFrames >= Handshake.maxFrames) handshake = false;
+    }
+
+    /**
+     * Sends the frame over TCP unless the receiver is congested, in which case the backpressure policy of the shard applies.
+     * Stream chunks go through the scheduler of the flow instead, so that they do not delay the other packets.
+     * Returns whether the frame was sent now, or queued for the scheduler.
+     */
+    private boolean send(Flow flow, Distributor shard, Connection receiver, Distributor receiverShard, ByteBuffer frame, boolean udp) {
+        if (!udp && Priority.bulk(frame)) return queue(flow, shard, receiver, receiverShard, frame);
+
+        int length = frame.remaining();
+        boolean sent = deliver(flow, shard, receiver, receiverShard, frame, udp);
+        if (flow.bulk != null) {
+            // chunks get a share of the buffer proportional to the control bytes that went ahead of them
+            if (sent) flow.credit = Math.min(flow.credit + length * shard.bulkWeight / Math.max(shard.controlWeight, 1), shard.writeBufferSize);
+            schedule(flow, shard, receiver, false);
+        }
+        return sent;
+    }
+
+    private boolean deliver(Flow flow, Distributor shard, Connection receiver, Distributor receiverShard, ByteBuffer frame, boolean udp) {
+        int capacity = shard.writeBufferSize, highWater = (int) (capacity * shard.highWater);
+        int occupancy = receiver.getTcpWriteBufferSize();
+
+        if (flow.parked != null) {
+            // frames parked earlier go first to keep the order
+            flush(flow, receiver, highWater);
+            if (flow.parked != null) {
+                // the grace period applies while frames are parked, not only once the park buffer overflows
+                if (expired(flow, shard, receiver, receiverShard)) return false;
+                return park(flow, shard, receiver, receiverShard, frame);
+            }
+            occupancy = receiver.getTcpWriteBufferSize();
+        }
+
+        if (occupancy <= highWater) {
+            flow.congestedSince = 0;
+            receiver.sendTCP(frame);
+            return true;
+        }
+
+        if (expired(flow, shard, receiver, receiverShard)) return false;
+
+        switch (shard.backpressure) {
+            case pause -> {
+                return park(flow, shard, receiver, receiverShard, frame);
+            }
+            case drop -> {
+                if (udp) {
+                    Metrics.dropped.increment();
+                    return false;
+                }
+            }
+            case disconnect -> {}
+        }
+
+        if (occupancy + frame.remaining() + 2 > capacity) {
+            slow(receiver, receiverShard); // would overflow the write buffer
+            return false;
+        }
+
+        receiver.sendTCP(frame);
+        return true;
+    }
+
+    /** Marks the flow as congested, and disconnects the receiver once it stayed so past the grace period. Returns whether it did. */
+    private boolean expired(Flow flow, Distributor shard, Connection receiver, Distributor receiverShard) {
+        long now = Time.millis();
+        if (flow.congestedSince == 0) flow.congestedSince = now;
+        else if (now - flow.congestedSince > shard.congestionGrace) {
+            slow(receiver, receiverShard);
+            return true;
+        }
+        return false;
+    }
+
+    /** Writes the chunk if the receiver is below the bulk mark and no chunk is waiting, otherwise queues it behind them. */
+    private boolean queue(Flow flow, Distributor shard, Connection receiver, Distributor receiverShard, ByteBuffer frame) {
+        if (flow.bulk == null) {
+            if (receiver.getTcpWriteBufferSize() <= shard.writeBufferSize * shard.bulkWater) {
+                receiver.sendTCP(frame);
+                return true;
+            }
+
+            flow.bulk = BufferPool.acquire(shard.writeBufferSize);
+            track(flow, shard);
+        }
+
+        var queue = flow.bulk.buffer;
+        if (queue.remaining() < frame.remaining() + 2) {
+            schedule(flow, shard, receiver, true); // the queue is full, so chunks may take the whole write buffer
+            if (flow.bulk == null) return queue(flow, shard, receiver, receiverShard, frame);
+
+            if (queue.remaining() < frame.remaining() + 2) {
+                slow(receiver, receiverShard);
+                return false;
+            }
+        }
+
+        queue.putShort((short) frame.remaining()).put(frame);
+        Metrics.scheduled.increment();
+        schedule(flow, shard, receiver, false);
+        return true;
+    }
+
+    /**
+     * Moves queued chunks into the write buffer while it stays below the bulk mark.
+     * Above it, chunks spend the credit given by control packets, up to the high water mark or the whole buffer if full is set.
+     */
+    private void schedule(Flow flow, Distributor shard, Connection receiver, boolean full) {
+        var queue = flow.bulk.buffer.flip();
+        int bulkWater = (int) (shard.writeBufferSize * shard.bulkWater);
+        int limit = full ? shard.writeBufferSize : (int) (shard.writeBufferSize * shard.highWater);
+
+        while (queue.remaining() >= 2) {
+            int length = queue.getShort(queue.position()) & 0xffff;
+            int occupancy = receiver.getTcpWriteBufferSize() + length + 2;
+
+            if (occupancy > bulkWater) {
+                if (occupancy > limit || (!full && flow.credit < length)) break;
+                if (!full) flow.credit -= length;
+            }
+
+            int end = queue.position() + 2 + length;
+            receiver.sendTCP(queue.duplicate().position(queue.position() + 2).limit(end));
+            queue.position(end);
+        }
+
+        queue.compact();
+        if (queue.position() == 0) {
+            flow.bulk.release();
+            flow.bulk = null;
+            flow.credit = 0;
+        }
     }
 
-    @Override
-    public void received(Connection connection, Object object) {
-        var receiver = connection == host ? client : host;
-        if (receiver != null) receiver.sendTCP(object);
+    private void track(Flow flow, Distributor shard) {
+        if (flow.tracked) return;
+
+        flow.tracked = true;
+        shard.parked.add(this);
+    }
+
+    /**
+     * Keeps the frame until the receiver drains, the shard flushes parked frames on its loop if the sender goes quiet.
+     * The NIO engine stops reading the sender meanwhile, so only the frames it already read are parked.
+     */
+    private boolean park(Flow flow, Distributor shard, Connection receiver, Distributor receiverShard, ByteBuffer frame) {
+        if (flow.parked == null) {
+            flow.parked = BufferPool.acquire(shard.writeBufferSize);
+            if ((flow == downstream ? host : client) instanceof NioEngine.NioConnection sender) {
+                flow.paused = sender;
+                sender.pause(true);
+            }
+        }
+
+        var parked = flow.parked.buffer;
+        if (parked.remaining() < frame.remaining() + 2) {
+            slow(receiver, receiverShard);
+            return false;
+        }
+
+        track(flow, shard);
+        parked.putShort((short) frame.remaining()).put(frame);
+        Metrics.parked.increment();
+        return false;
+    }
+
+    /** Sends parked frames while the receiver stays below the high water mark, the buffer goes back to the pool once empty. */
+    private void flush(Flow flow, Connection receiver, int highWater) {
+        var parked = flow.parked.buffer.flip();
+
+        while (parked.remaining() >= 2) {
+            int length = parked.getShort(parked.position()) & 0xffff;
+            if (receiver.getTcpWriteBufferSize() + length + 2 > highWater) break;
+
+            int end = parked.position() + 2 + length;
+            receiver.sendTCP(parked.duplicate().position(parked.position() + 2).limit(end));
+            parked.position(end);
+        }
+
+        parked.compact();
+        if (parked.position() == 0) {
+            flow.parked.release();
+            flow.parked = null;
+            flow.congestedSince = 0;
+            flow.resume();
+        }
+    }
+
+    /**
+     * Flushes what the given shard parked for this redirector.
+     * Returns true once nothing is parked anymore, so the shard can stop tracking it.
+     */
+    boolean drain(Distributor shard) {
+        if (closed) return true;
+        boolean empty = true;
+
+        int highWater = (int) (shard.writeBufferSize * shard.highWater);
+        if (shard == hostShard && client != null) {
+            if (downstream.parked != null) flush(downstream, client, highWater);
+            // a receiver that does not drain is disconnected even if the sender went quiet
+            if (downstream.parked != null && expired(downstream, shard, client, clientShard)) downstream.release();
+            if (downstream.bulk != null) schedule(downstream, shard, client, false);
+            empty = downstream.parked == null && downstream.bulk == null;
+        }
+        if (shard == clientShard && host != null) {
+            if (upstream.parked != null) flush(upstream, host, highWater);
+            if (upstream.parked != null && expired(upstream, shard, host, hostShard)) upstream.release();
+            if (upstream.bulk != null) schedule(upstream, shard, host, false);
+            empty &= upstream.parked == null && upstream.bulk == null;
+        }
+
+        if (empty) {
+            if (shard == hostShard) downstream.tracked = false;
+            if (shard == clientShard) upstream.tracked = false;
+        }
+        return empty;
+    }
+
+    private void slow(Connection receiver, Distributor receiverShard) {
+        Log.warn("Connection @ could not keep up with the relayed traffic and was disconnected.", receiver.getID());
+        Metrics.slowConsumers.increment();
+        receiverShard.execute(() -> receiver.close(DcReason.error));
+    }
+
+    /** Keeps the reliable frames of a waiting client until the host is attached, unreliable ones are dropped. */
+    private void hold(Connection connection, ByteBuffer frame, boolean udp) {
+        if (backlog == null || udp) return;
+
+        var backlog = this.backlog.buffer;
+        if (backlog.remaining() < frame.remaining() + 2) {
+            connection.close(DcReason.error); // sends too much before the host could even connect
+            return;
+        }
+
+        backlog.putShort((short) frame.remaining()).put(frame);
+    }
+
+    static class Flow {
+        /** Time since which the receiver is above the high water mark, or zero. */
+        long congestedSince;
+        /** Frames waiting for the receiver to drain, each prefixed with its length. Taken from the pool on first use. */
+        BufferPool.Pooled parked;
+        /** Stream chunks waiting behind control packets, each prefixed with its length, and bytes of them allowed above the bulk mark. */
+        BufferPool.Pooled bulk;
+        int credit;
+        /** Whether the redirector is in the list of parked redirectors of the sending shard. */
+        boolean tracked;
+        /** Sender whose reads are paused while frames are parked, only the NIO engine can pause them. */
+        NioEngine.NioConnection paused;
+
+        void release() {
+            if (parked != null) parked.release();
+            if (bulk != null) bulk.release();
+            parked = bulk = null;
+            credit = 0;
+            resume();
+        }
+
+        void resume() {
+            if (paused != null) paused.pause(false);
+            paused = null;
+        }
     }
 }
@@ -2,9 +2,13 @@ package com.xpdustry.claj.server;
 
 import arc.net.Connection;
 import arc.net.DcReason;
-import arc.struct.Seq;
+import arc.struct.ObjectSet;
 import arc.util.Log;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * Represents a room containing a host and redirectors.
  * 
@@ -15,25 +19,106 @@ public class Room {
     public String link;
 
     public Connection host;
-    public Seq<Redirector> redirectors = new Seq<>();
+    /** Shard that owns the room, the set of redirectors is only modified on its event loop. */
+    public Distributor owner;
+
+    public ObjectSet<Redirector> redirectors = new ObjectSet<>();
+    /** Redirectors waiting for a client, removed ones are skipped lazily when polling. Clients poll it from any shard. */
+    public ConcurrentLinkedQueue<Redirector> free = new ConcurrentLinkedQueue<>();
+    /** Redirectors of clients that joined while none were free, oldest first. */
+    public ConcurrentLinkedQueue<Redirector> waiting = new ConcurrentLinkedQueue<>();
+
+    /** Redirectors asked from the host that have not connected yet. */
+    public final AtomicInteger requested = new AtomicInteger();
+    private volatile long lastRequest;
 
-    public Room(String link, Connection host) {
+    /** Bytes relayed by all redirectors of the room, in both directions. */
+    public final LongAdder bytes = new LongAdder();
+    /** Whether the frames of the room are recorded by the running capture. */
+    public volatile boolean captured;
+    /** Time of the last frame relayed by any redirector of the room, only read by the owner to find idle rooms. */
+    long active;
+    /** Rate limit shared by all connections of the room, taken from any shard. */
+    private final Budget budget = new Budget();
+
+    public Room(String link, Connection host, Distributor owner) {
         this.link = link;
         this.host = host;
+        this.owner = owner;
 
-        sendMessage("new"); // there must be at least one empty redirector in the room
+        refill(); // there must be at least one empty redirector in the room
         sendMessage(
                 "[scarlet][[CLaJ Server]: [yellow]WARNING[white], the scheme-size version of [yellow]CLaJ[] is no longer maintained and will shutdown soon. " +
                 "You can get the new version by installing the dedicated [yellow]'claj'[] mod in the mod browser.\n" +
                 "[lightgray]After that, if you don't use any of the other features of scheme-size, removing it is recommended.");
         Log.info("Room @ created!", link);
+        Metrics.roomsCreated.increment();
+    }
+
+    public void add(Redirector redirector) {
+        if (redirector.room != this) return; // removed before it was added
+
+        redirectors.add(redirector);
+        if (redirector.client == null) free.add(redirector);
+    }
+
+    public void remove(Redirector redirector) {
+        if (redirector.room != this) return;
+
+        redirector.room = null;
+        redirectors.remove(redirector);
+        // a free redirector that went away leaves a hole in the pool
+        if (free.remove(redirector) && host.isConnected()) refill();
+    }
+
+    /** Takes the oldest redirector that has no client yet and whose host is still there, or null if there are none. */
+    public Redirector poll() {
+        for (Redirector redirector; (redirector = free.poll()) != null;)
+            if (redirector.room == this && redirector.client == null && !redirector.closed) return redirector;
+
+        return null;
+    }
+
+    /** Takes the oldest redirector of a client that is still waiting for a host, or null if there are none. */
+    public Redirector pollWaiting() {
+        for (Redirector redirector; (redirector = waiting.poll()) != null;)
+            if (redirector.room == this && redirector.host == null && !redirector.closed) return redirector;
+
+        return null;
+    }
+
+    /** Asks the host for as many redirectors as needed to reach the pool size of the owner, plus one per waiting client. */
+    public void refill() {
+        long now = System.currentTimeMillis();
+        if (now - lastRequest > owner.requestTimeout) requested.set(0); // older requests were ignored by the host
+
+        int missing = owner.poolSize + waiting.size() - free.size() - requested.get();
+        if (missing <= 0) return;
+
+        requested.addAndGet(missing);
+        lastRequest = now;
+        for (int i = 0; i < missing; i++) sendMessage("new");
+    }
+
+    public synchronized boolean take(Limit limit, int size, long now) {
+        return budget.take(limit, size, now);
+    }
+
+    /** Called when the host connects a redirector it was asked for. */
+    public void hosted() {
+        requested.updateAndGet(count -> Math.max(count - 1, 0));
     }
 
     public void close() {
         // rooms only closes if the host left, so there's no point in disconnecting it again
-        redirectors.each(r -> r.disconnected(null, DcReason.closed));
+        // iterate over a copy, as disconnecting a redirector removes it from the room
+        redirectors.toSeq().each(r -> r.disconnected(null, DcReason.closed));
+        redirectors.clear();
+        free.clear();
+        waiting.clear();
 
         Log.info("Room @ closed.", link);
+        Metrics.roomsClosed.increment();
     }
 
     public void sendMessage(String message) {
@@ -10,7 +10,19 @@ import java.nio.ByteBuffer;
 public class Serializer implements NetSerializer {
 
     public static final byte frameworkID = -2, linkID = -3;
-    public ByteBuffer last = ByteBuffer.allocate(8192);
+
+    /** View over the last raw frame, shares its content with the read buffer of the connection to avoid copying. */
+    public ByteBuffer last;
+    /** Read buffer that {@link #last} is a view of. */
+    private ByteBuffer source;
+
+    /**
+     * Whether the last frame was received over UDP, engines that know the transport of a frame set it after reading it.
+     * Only meaningful on the server side, clients receive RegisterUDP over TCP.
+     */
+    public boolean udp;
+    /** Read buffer of the UDP socket of arcnet, taken from the server after it is bound since no peer can send into it. */
+    public ByteBuffer datagrams;
 
     @Override
     public void write(ByteBuffer buffer, Object object) {
@@ -21,23 +33,30 @@ public class Serializer implements NetSerializer {
             writeFramework(buffer, message);
         } else if (object instanceof String link) {
             buffer.put(linkID);
-            Writes.get(new ByteBufferOutput(buffer)).str(link);
+            new Writes(new ByteBufferOutput(buffer)).str(link);
         }
     }
 
     @Override
     public Object read(ByteBuffer buffer) {
+        udp = buffer == datagrams;
+
         int lastPosition = buffer.position();
         byte id = buffer.get();
 
         if (id == frameworkID) return readFramework(buffer);
-        if (id == linkID) return Reads.get(new ByteBufferInput(buffer)).str();
+        if (id == linkID) return new Reads(new ByteBufferInput(buffer)).str();
+
+        if (buffer != source) {
+            source = buffer;
+            last = buffer.duplicate();
+        }
 
-        last.clear();
-        last.put(buffer.position(lastPosition));
-        last.limit(buffer.limit() - lastPosition);
+        // the frame is consumed from the read buffer, but its bytes stay valid until the next read
+        last.limit(buffer.limit()).position(lastPosition);
+        buffer.position(buffer.limit());
 
-        return last.position(0);
+        return last;
     }
 
     public void writeFramework(ByteBuffer buffer, FrameworkMessage message) {
@@ -0,0 +1,84 @@
+package com.xpdustry.claj.server;
+
+import arc.util.Log;
+import arc.util.Threads;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Group of distributors, each running its own event loop, that share one port.
+ * The NIO engine of the first shard accepts connections and spreads them over all shards, arcnet cannot hand
+ * its connections over, so it runs a single shard.
+ * Rooms stay on the shard of their host, the directory of links is shared so that any shard finds the room a connection
+ * names and hands the connection to the shard of the room.
+ */
+public class Shards {
+
+    public final Distributor[] distributors;
+    public final ConcurrentHashMap<String, Room> links = new ConcurrentHashMap<>();
+
+    public Shards(int count, int writeBufferSize, int objectBufferSize) {
+        this(count, writeBufferSize, objectBufferSize, false);
+    }
+
+    /** The NIO engine replaces the transport of arcnet, rooms and redirectors behave the same on both. */
+    public Shards(int count, int writeBufferSize, int objectBufferSize, boolean nio) {
+        if (!nio && count > 1) {
+            Log.warn("The arcnet engine runs a single shard, remove -Dclaj.engine=arc to spread connections over @.", count);
+            count = 1;
+        }
+
+        distributors = new Distributor[count];
+        var engines = new NioEngine[count];
+        for (int i = 0; i < count; i++) {
+            var distributor = distributors[i] = new Distributor(i, links, writeBufferSize, objectBufferSize);
+            if (nio) distributor.engine = engines[i] = new NioEngine(distributor, distributor.listener);
+        }
+        if (nio) NioEngine.group(engines);
+    }
+
+    /** Runs the first shard on the current thread and every other one on a thread of its own. */
+    public void run(int port) throws IOException {
+        Blacklist.refresh(); // refresh github's ips
+        Log.info("Starting @ shards on port @ with the @ engine.", distributors.length, port, distributors[0].engine != null ? "NIO" : "arcnet");
+
+        for (int i = 1; i < distributors.length; i++) {
+            var distributor = distributors[i];
+
+            Threads.daemon("Distributor Shard " + i, () -> {
+                try {
+                    distributor.run(port);
+                } catch (Throwable error) {
+                    Log.err("Shard " + distributor.shard + " stopped", error);
+                }
+            });
+        }
+
+        distributors[0].run(port);
+    }
+
+    /** Makes this node part of a cluster, rooms it does not own are looked up in the directory. */
+    public void join(Directory directory, Directory.Node node) {
+        for (var distributor : distributors) {
+            distributor.directory = directory;
+            distributor.node = node;
+        }
+    }
+
+    /**
+     * Stops or resumes accepting connections, so that a new version bound to the same port gets all of them while this one drains.
+     * Returns false if the port cannot be shared, arcnet binds it without {@code SO_REUSEPORT}.
+     */
+    public boolean accepting(boolean accepting) {
+        var first = distributors[0];
+        if (first.engine == null) return false;
+
+        first.execute(() -> first.engine.accepting(accepting));
+        return true;
+    }
+
+    public void stop() {
+        for (var distributor : distributors) distributor.stop();
+    }
+}
@@ -0,0 +1,68 @@
+package com.xpdustry.claj.server;
+
+import arc.func.Cons;
+import arc.struct.Seq;
+
+/**
+ * Hashed timer wheel, scheduling and advancing by one slot are O(1) whatever the number of entries.
+ * Entries are not moved when they become active again: they are visited when their slot comes up and are expected
+ * to check their own deadline, then to be scheduled again if it moved. Deadlines further than one revolution work the same way.
+ * Not thread safe, each shard has its own wheels.
+ */
+public class TimerWheel<T> {
+
+    /** Duration of a slot in milliseconds. */
+    public final long resolution;
+
+    private final Seq<T>[] slots;
+    private final int mask;
+    private Seq<T> visiting = new Seq<>();
+    /** Index of the next slot to visit, counted in slots since the epoch. */
+    private long cursor = -1;
+
+    /** The number of slots is rounded up to a power of two. */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long resolution, int slots) {
+        int size = Integer.highestOneBit(Math.max(slots - 1, 1)) << 1;
+
+        this.resolution = resolution;
+        this.slots = new Seq[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) this.slots[i] = new Seq<>(false, 4);
+    }
+
+    public void schedule(T entry, long deadline) {
+        long slot = deadline / resolution;
+        if (cursor != -1 && slot < cursor) slot = cursor; // already past, visit it on the next advance
+
+        slots[(int) (slot & mask)].add(entry);
+    }
+
+    /** Visits the entries of every slot up to the given time, they are removed from the wheel before being visited. */
+    public void advance(long now, Cons<T> visitor) {
+        long target = now / resolution;
+        if (cursor == -1) cursor = target;
+
+        // after a long pause there is no point in visiting the same slots more than once
+        if (target - cursor > mask) cursor = target - mask;
+
+        while (cursor <= target) {
+            int index = (int) (cursor++ & mask);
+            var slot = slots[index];
+            if (slot.isEmpty()) continue;
+
+            // swap so that visitors can schedule again, entries that are already due land in the next slot
+            slots[index] = visiting;
+            visiting = slot;
+
+            visiting.each(visitor);
+            visiting.clear();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (var slot : slots) size += slot.size;
+        return size;
+    }
+}
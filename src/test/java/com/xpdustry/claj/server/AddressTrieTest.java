@@ -0,0 +1,175 @@
+package com.xpdustry.claj.server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AddressTrieTest {
+
+    static byte[] ip(String address) {
+        byte[] bytes = AddressTrie.parse(address);
+        assertNotNull(bytes, address);
+        return bytes;
+    }
+
+    static AddressTrie trie(String... ranges) {
+        var trie = AddressTrie.empty;
+        for (String range : ranges) {
+            byte[] address = ip(range.split("/")[0]);
+            trie = trie.with(address, AddressTrie.prefix(range, address));
+        }
+        return trie;
+    }
+
+    @Test
+    void singleAddress() {
+        var trie = trie("192.168.1.10");
+
+        assertTrue(trie.contains(ip("192.168.1.10")));
+        assertFalse(trie.contains(ip("192.168.1.11")));
+        assertFalse(trie.contains(ip("192.168.1.138")));
+        assertFalse(trie.contains(ip("::c0a8:10a"))); // same low bits, other family
+    }
+
+    @Test
+    void cidrRanges() {
+        var trie = trie("10.0.0.0/8", "172.16.0.0/12", "203.0.113.128/25");
+
+        assertTrue(trie.contains(ip("10.0.0.0")));
+        assertTrue(trie.contains(ip("10.255.255.255")));
+        assertFalse(trie.contains(ip("11.0.0.0")));
+        assertFalse(trie.contains(ip("9.255.255.255")));
+
+        assertTrue(trie.contains(ip("172.16.0.1")));
+        assertTrue(trie.contains(ip("172.31.255.255")));
+        assertFalse(trie.contains(ip("172.32.0.0")));
+        assertFalse(trie.contains(ip("172.15.255.255")));
+
+        assertTrue(trie.contains(ip("203.0.113.128")));
+        assertTrue(trie.contains(ip("203.0.113.255")));
+        assertFalse(trie.contains(ip("203.0.113.127")));
+    }
+
+    @Test
+    void hostBitsOfRangeAreIgnored() {
+        var trie = trie("10.1.2.3/8");
+
+        assertTrue(trie.contains(ip("10.200.0.1")));
+        assertFalse(trie.contains(ip("11.1.2.3")));
+    }
+
+    @Test
+    void emptyPrefixCoversItsFamilyOnly() {
+        var v4 = trie("0.0.0.0/0");
+        assertTrue(v4.contains(ip("0.0.0.0")));
+        assertTrue(v4.contains(ip("255.255.255.255")));
+        assertFalse(v4.contains(ip("::1")));
+
+        var v6 = trie("::/0");
+        assertTrue(v6.contains(ip("2001:db8::1")));
+        assertTrue(v6.contains(ip("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff")));
+        assertFalse(v6.contains(ip("127.0.0.1")));
+    }
+
+    @Test
+    void fullPrefixes() {
+        var trie = trie("198.51.100.7/32", "2001:db8::7/128");
+
+        assertTrue(trie.contains(ip("198.51.100.7")));
+        assertFalse(trie.contains(ip("198.51.100.6")));
+        assertTrue(trie.contains(ip("2001:db8::7")));
+        assertFalse(trie.contains(ip("2001:db8::6")));
+        assertFalse(trie.contains(ip("2001:db8::7:0")));
+    }
+
+    @Test
+    void ipv6Literals() {
+        var trie = trie("2001:db8::/32", "::1", "fe80::/10");
+
+        assertTrue(trie.contains(ip("2001:db8:ffff::1")));
+        assertTrue(trie.contains(ip("2001:0db8:0000:0000:0000:0000:0000:0001")));
+        assertFalse(trie.contains(ip("2001:db9::1")));
+        assertTrue(trie.contains(ip("0:0:0:0:0:0:0:1")));
+        assertFalse(trie.contains(ip("::2")));
+        assertTrue(trie.contains(ip("febf::1")));
+        assertFalse(trie.contains(ip("fec0::1")));
+    }
+
+    @Test
+    void withoutRemovesExactlyTheRange() {
+        var trie = trie("10.0.0.0/8", "10.1.0.0/16", "10.1.2.3");
+
+        var narrower = trie.without(ip("10.1.0.0"), 16);
+        assertTrue(narrower.contains(ip("10.1.9.9")), "the wider /8 still covers the /16");
+
+        var wider = trie.without(ip("10.0.0.0"), 8);
+        assertTrue(wider.contains(ip("10.1.9.9")));
+        assertTrue(wider.contains(ip("10.1.2.3")));
+        assertFalse(wider.contains(ip("10.2.0.0")));
+
+        var all = wider.without(ip("10.1.0.0"), 16).without(ip("10.1.2.3"), 32);
+        assertFalse(all.contains(ip("10.1.2.3")));
+        assertFalse(all.contains(ip("10.1.9.9")));
+    }
+
+    @Test
+    void withoutIgnoresRangesThatWereNotAdded() {
+        var trie = trie("10.0.0.0/8");
+
+        // unbanning one address of a banned range does not punch a hole in it
+        assertTrue(trie.without(ip("10.1.2.3"), 32).contains(ip("10.1.2.3")));
+        // nor does removing a wider range that was never added
+        assertTrue(trie.without(ip("0.0.0.0"), 0).contains(ip("10.1.2.3")));
+        assertTrue(trie.without(ip("192.168.0.0"), 16).contains(ip("10.1.2.3")));
+        // and the other family is left alone
+        assertTrue(trie.without(ip("::"), 0).contains(ip("10.1.2.3")));
+    }
+
+    @Test
+    void modificationsLeaveOlderInstancesUnchanged() {
+        var before = trie("10.0.0.0/8");
+        var after = before.with(ip("192.168.0.0"), 16).without(ip("10.0.0.0"), 8);
+
+        assertTrue(before.contains(ip("10.1.2.3")));
+        assertFalse(before.contains(ip("192.168.1.1")));
+        assertFalse(after.contains(ip("10.1.2.3")));
+        assertTrue(after.contains(ip("192.168.1.1")));
+        assertFalse(AddressTrie.empty.contains(ip("10.1.2.3")));
+    }
+
+    @Test
+    void parsing() {
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, AddressTrie.parse("1.2.3.4"));
+        assertArrayEquals(new byte[] { 10, 0, 0, 1 }, AddressTrie.parse("010.0.0.001"));
+        assertEquals(16, AddressTrie.parse("::").length);
+
+        assertNull(AddressTrie.parse("1.2.3"));
+        assertNull(AddressTrie.parse("1.2.3.4.5"));
+        assertNull(AddressTrie.parse("1.2.3."));
+        assertNull(AddressTrie.parse("256.0.0.1"));
+        assertNull(AddressTrie.parse("1.2.3.0004"));
+        assertNull(AddressTrie.parse("1.2.3.-4"));
+        assertNull(AddressTrie.parse("localhost")); // host names are never resolved
+        assertNull(AddressTrie.parse("example.com"));
+        assertNull(AddressTrie.parse("2001:db8::g"));
+    }
+
+    @Test
+    void prefixes() {
+        byte[] v4 = ip("10.0.0.0"), v6 = ip("2001:db8::");
+
+        assertEquals(32, AddressTrie.prefix("10.0.0.0", v4));
+        assertEquals(0, AddressTrie.prefix("10.0.0.0/0", v4));
+        assertEquals(8, AddressTrie.prefix("10.0.0.0/8", v4));
+        assertEquals(32, AddressTrie.prefix("10.0.0.0/32", v4));
+        assertEquals(-1, AddressTrie.prefix("10.0.0.0/33", v4));
+        assertEquals(-1, AddressTrie.prefix("10.0.0.0/-1", v4));
+        assertEquals(-1, AddressTrie.prefix("10.0.0.0/", v4));
+        assertEquals(-1, AddressTrie.prefix("10.0.0.0/x", v4));
+
+        assertEquals(128, AddressTrie.prefix("2001:db8::", v6));
+        assertEquals(32, AddressTrie.prefix("2001:db8::/32", v6));
+        assertEquals(128, AddressTrie.prefix("2001:db8::/128", v6));
+        assertEquals(-1, AddressTrie.prefix("2001:db8::/129", v6));
+    }
+}
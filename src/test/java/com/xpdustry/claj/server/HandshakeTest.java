@@ -0,0 +1,108 @@
+package com.xpdustry.claj.server;
+
+import arc.util.io.ByteBufferOutput;
+import arc.util.io.Writes;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compresses ConnectPackets with lz4-java and checks that {@link Handshake#version} reads their version back.
+ * The decoder of the server is hand-written and fed by anyone, so it is also given truncated and random blocks.
+ */
+class HandshakeTest {
+
+    static final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+    static final int[] versions = { 146, 147, 0, -1, 1, 0x00000100, 0x01010101, 0x92929292, 0x7fffffff, Integer.MIN_VALUE + 1 };
+
+    @Test
+    void connectPackets() {
+        String[] names = { "", "player", "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa", "[scarlet]\u26A0[] \u00e9\u00e8" };
+
+        for (int version : versions) {
+            for (String name : names) {
+                check(version, connectPacket(version, name));
+            }
+        }
+    }
+
+    @Test
+    void versionFollowedByZeros() {
+        // nothing but the version and zeros, so matches start right after the first byte when it repeats
+        for (int version : versions) {
+            check(version, ByteBuffer.allocate(128).putInt(version).array());
+        }
+    }
+
+    @Test
+    void matchesStartingInTheVersion() {
+        var random = new Random(42);
+        int early = 0;
+        for (int i = 0; i < 10000; i++) {
+            byte[] body = new byte[4 + random.nextInt(512)];
+            // few distinct bytes, so that the compressor finds matches everywhere including the version
+            int symbols = 1 + random.nextInt(4);
+            for (int j = 0; j < body.length; j++) body[j] = (byte) random.nextInt(symbols);
+            if (check(ByteBuffer.wrap(body).getInt(), body)) early++;
+        }
+
+        assertNotEquals(0, early, "no block had a match starting in the version, the test does not cover it");
+    }
+
+    @Test
+    void randomBlocksNeverThrow() {
+        var random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            byte[] block = new byte[random.nextInt(64)];
+            random.nextBytes(block);
+            Handshake.version(frame(random.nextInt(0xffff), block, block.length));
+        }
+    }
+
+    /** Body of a ConnectPacket as written by Mindustry, the version comes first. */
+    static byte[] connectPacket(int version, String name) {
+        var buffer = ByteBuffer.allocate(1024);
+        var write = new Writes(new ByteBufferOutput(buffer));
+        write.i(version);
+        write.str("official");
+        write.str(name);
+        write.str("en");
+        write.str("AAAAAAAAAAA=");
+        write.b(new byte[16]);
+        write.bool(false);
+        write.i(0xffd37fff);
+        write.b(0); // mods
+
+        byte[] body = new byte[buffer.position()];
+        buffer.flip().get(body);
+        return body;
+    }
+
+    /** Returns whether the first sequence of the block has less than 4 literals, the version is then partly copied by a match. */
+    static boolean check(int version, byte[] body) {
+        byte[] block = compressor.compress(body);
+
+        var frame = frame(body.length, block, block.length);
+        assertEquals(version, Handshake.version(frame), () -> "version read from a body of " + body.length + " bytes");
+        assertEquals(0, frame.position(), "the position of the frame moved");
+
+        // a block cut anywhere yields the version or nothing, never another value
+        for (int length = 0; length < block.length; length++) {
+            int read = Handshake.version(frame(body.length, block, length));
+            if (read != version && read != Handshake.none) fail("read version " + read + " from a block cut at " + length + " bytes");
+        }
+        return (block[0] & 0xff) >>> 4 < 4;
+    }
+
+    static ByteBuffer frame(int length, byte[] block, int blockLength) {
+        var frame = ByteBuffer.allocate(4 + blockLength).put((byte) 3).putShort((short) length).put((byte) 1).put(block, 0, blockLength);
+        return frame.rewind();
+    }
+}